@@ -35,6 +35,44 @@
 		If a second argument is presented, then the first argument is the 
 		primary server, and the second one is the secondary server.
 			> java JokeClient localhost 140.192.1.22
+			
+		With "-keepalive", the connection to each server stays open and carries 
+		all the requests, instead of one connection per joke/proverb.
+			> java JokeClient -keepalive localhost
+			
+		With "-batch=", the client asks for up to that many items of its 
+		current deck in one request, and shows them one at a time.
+			> java JokeClient -batch=4
+			
+		With "-binary", the client uses the binary framed protocol over a 
+		connection which stays open.
+			> java JokeClient -binary localhost
+			
+		With "-state8", the client sends the 8-bits state of the first 
+		servers instead of a version 2 state, its decks then hold 4 items.
+			> java JokeClient -state8 localhost
+			
+		With "-shared", the client sends the same state to both servers, 
+		for servers started with "-stateless" and the same "-secret=".
+			> java JokeClient -shared localhost 140.192.1.22
+			
+		With "-port=", the client uses the ports of a server started 
+		with "-port=", such as a node of a cluster.
+			> java JokeClient -port=6001 localhost
+			
+		With "-servers=", the client is sent to a fleet of any number of 
+		servers (host:port) instead. A background thread probes them with a 
+		request every "-probe=" ms (1000 by default), each request goes to the 
+		faster of two healthy servers picked at random, and a request which 
+		fails is sent to another server until "-deadline=" ms have passed 
+		(2000 by default). "-timeout=" sets the ms to wait for one server (1000 
+		by default), a server which times out 3 times in a row is left out 
+		until the next probe. The client keeps one state per server, or one 
+		for all of them with "-shared".
+			> java JokeClient -servers=localhost:6001,localhost:6002,localhost:6003
+			
+		"-connections=" sets the number of connections kept open to each 
+		server with "-keepalive" or "-binary" (2 by default).
 
 5. List of files needed for running the program.
 
@@ -50,20 +88,55 @@
 	c. The client gets notified by the server about whether it is Joke mode 
 	or Proverb mode currently, and then print out the corresponding output 
 	according to the updated state sent from the server.
+	d. The console only reads the user's input and prints the replies. The requests are sent by an 
+	AsyncJokeClient, which other programs may use as well: it is thread-safe, shares a few pooled 
+	connections between any number of callers, and returns a CompletableFuture for each request.
 
 ----------------------------------------------------------*/
 
 
 import java.io.*; // Import the input/output package
 import java.net.*; // Import the Java networking package
+import java.text.SimpleDateFormat; // The default name of the results file of a load test.
+import java.util.ArrayDeque; // Buffer the items of a batch until they are shown.
+import java.util.ArrayList; // Hold the server names passed as arguments.
+import java.util.Collections; // The items of a reply, which never change.
+import java.util.Date; // The default name of the results file of a load test.
+import java.util.HashMap; // The states of a user, by server.
+import java.util.List; // The servers of a fleet.
+import java.util.Locale; // The numbers of the results file are written the same way everywhere.
+import java.util.Map; // The states of a user, by server.
 import java.util.UUID; // Import this package to enable the generation of UUID.
+import java.util.concurrent.CompletableFuture; // The replies of the asynchronous client.
+import java.util.concurrent.ConcurrentHashMap; // The pooled connections, by server.
+import java.util.concurrent.ConcurrentLinkedQueue; // The requests of a connection waiting for their reply.
+import java.util.concurrent.CompletionException; // Wraps the failure of a connection opened in the background.
+import java.util.concurrent.ExecutionException; // The console waits for the replies.
+import java.util.concurrent.ExecutorService; // Opens the connections and handles the replies of the asynchronous client.
+import java.util.concurrent.Executors; // The timer of the asynchronous client.
+import java.util.concurrent.ScheduledExecutorService; // Times out the requests.
+import java.util.concurrent.ScheduledFuture; // The timeout of one request.
+import java.util.concurrent.ThreadLocalRandom; // Pick two servers of the fleet at random.
+import java.util.concurrent.TimeUnit; // Unit of the timeouts.
+import java.util.concurrent.TimeoutException; // A request which took too long.
+import java.util.concurrent.atomic.AtomicBoolean; // Only one caller flushes a connection at a time.
+import java.util.concurrent.atomic.AtomicInteger; // Requests in flight to a server of the fleet.
+import java.util.concurrent.atomic.AtomicLong; // The counters of the load test.
+import java.util.concurrent.atomic.AtomicLongArray; // The buckets of a latency histogram.
+import java.util.concurrent.locks.LockSupport; // Paces the requests of an open loop load test.
 
 public class JokeClient
 {
-	// Maintain two states, one for the primary server, the other for the secondary server.
-	// A state is a 8-bits integer 00000000, the left four bits indicate the joke state, while the right four bits are for proverb.
-	public static int state1 = 0x00;
-	public static int state2 = 0x00;
+	// A version 2 state starts with '#', then holds in hex, for each mode, the mode letter and a varint of the 
+	// mask of the items already sent, so the server may use decks of more than 4 items.
+	// With "-state8", a state is a 8-bits integer 00000000, the left four bits indicate the joke state, 
+	// while the right four bits are for proverb, for the servers which only know this state.
+	// The user keeps one state for each server, kept as they are sent (see JokeUser).
+	public static String initialState = "#";
+	
+	// With "-shared", the same state is sent to every server. Stateless servers with the same secret keep the 
+	// decks in the state itself, so either of them continues the decks the other one started.
+	public static boolean sharedState = false;
 	
 	// Initialize a string to hold the user's name.
 	public static String name = null;
@@ -75,9 +148,9 @@ public class JokeClient
 	// Initialize a string to hold the server's mode, either Joke mode or Proverb mode.
 	public static String mode = null;
 	
-	// Two port number, port1 for primary server, port2 for secondary server.
-	public static final int port1 = 4545;
-	public static final int port2 = 4546;
+	// Two port number, port1 for primary server, port2 for secondary server, moved by "-port=".
+	public static int port1 = 4545;
+	public static int port2 = 4546;
 	
 	// A string flag to check if the current connected server is primary or secondary, primary is the default setting.
 	public static String serverOn = "P";
@@ -85,6 +158,34 @@ public class JokeClient
 	// A boolean flag to check if the two servers connected are different.
 	public static boolean differentServer = false;
 	
+	// The first line which opts in to version 2 of the protocol, the connection then stays open for many requests.
+	public static final String HELLO_V2 = "JOKE/2";
+	
+	// A boolean flag to check if the connections are kept open between requests, turned on by "-keepalive".
+	public static boolean keepAlive = false;
+	
+	// A boolean flag to check if the binary framed protocol is used, turned on by "-binary". 
+	// Binary connections always stay open between requests.
+	public static boolean binary = false;
+	
+	// Marker of a binary request frame.
+	public static final int REQUEST_FRAME = 0xB1;
+	
+	// Number of items asked for in one request, set by "-batch=". With more than 1, the items are kept 
+	// in a local buffer, one for each server, and shown one at a time.
+	public static int batch = 1;
+	public static ArrayDeque<String[]> buffer1 = new ArrayDeque<>();
+	public static ArrayDeque<String[]> buffer2 = new ArrayDeque<>();
+	
+	// The servers given by "-servers=", null when the client uses a primary and a secondary server.
+	public static Fleet fleet;
+	
+	// Milliseconds to wait for a server to connect or to answer, 0 to wait as long as it takes, set by "-timeout=".
+	public static int timeout = 0;
+	
+	// Milliseconds a request may take, retries included, set by "-deadline=" for a fleet. 0 waits as long as it takes.
+	public static int deadline = 0;
+	
 	
 	public static void main(String args[])
 	{
@@ -94,14 +195,77 @@ public class JokeClient
 		String secondServer = null; // Secondary server name.
 		boolean second = false; // A boolean flag to check if a secondary server is connected.
 		
-		if (args.length < 1) // When no argument, local host is the default server.
+		String fleetServers = null; // The servers of a fleet.
+		int probe = 1000; // Milliseconds between two health probes of the fleet.
+		int connections = 2; // Connections kept open to each server.
+		
+		int load = 0; // Simulated users of a load test, 0 for the console.
+		double rate = 0; // Requests per second of an open loop load test, 0 for a closed loop.
+		int duration = 10; // Seconds of the load test which are measured.
+		int warmup = 2; // Seconds of the load test before it is measured.
+		int think = 0; // Milliseconds a user of a closed loop waits between a reply and its next request.
+		String out = null; // The results file of the load test.
+		
+		// Take the options out of the arguments, the other arguments are the server names.
+		ArrayList<String> servers = new ArrayList<>();
+		for (String arg : args)
+		{
+			if (arg.toLowerCase().equals("-keepalive"))
+				keepAlive = true;
+			else if (arg.toLowerCase().startsWith("-batch="))
+				batch = Math.max(1, Integer.parseInt(arg.substring("-batch=".length())));
+			else if (arg.toLowerCase().equals("-binary"))
+				binary = true;
+			else if (arg.toLowerCase().equals("-state8"))
+				initialState = "0";
+			else if (arg.toLowerCase().equals("-shared"))
+				sharedState = true;
+			else if (arg.toLowerCase().startsWith("-port="))
+			{
+				port1 = Integer.parseInt(arg.substring("-port=".length()));
+				port2 = port1 + 1;
+			}
+			else if (arg.toLowerCase().startsWith("-servers="))
+				fleetServers = arg.substring("-servers=".length());
+			else if (arg.toLowerCase().startsWith("-deadline="))
+				deadline = Math.max(1, Integer.parseInt(arg.substring("-deadline=".length())));
+			else if (arg.toLowerCase().startsWith("-probe="))
+				probe = Math.max(1, Integer.parseInt(arg.substring("-probe=".length())));
+			else if (arg.toLowerCase().startsWith("-timeout="))
+				timeout = Math.max(1, Integer.parseInt(arg.substring("-timeout=".length())));
+			else if (arg.toLowerCase().startsWith("-connections="))
+				connections = Math.max(1, Integer.parseInt(arg.substring("-connections=".length())));
+			else if (arg.toLowerCase().startsWith("-load="))
+				load = Math.max(1, Integer.parseInt(arg.substring("-load=".length())));
+			else if (arg.toLowerCase().startsWith("-rate="))
+				rate = Math.max(0, Double.parseDouble(arg.substring("-rate=".length())));
+			else if (arg.toLowerCase().startsWith("-duration="))
+				duration = Math.max(1, Integer.parseInt(arg.substring("-duration=".length())));
+			else if (arg.toLowerCase().startsWith("-warmup="))
+				warmup = Math.max(0, Integer.parseInt(arg.substring("-warmup=".length())));
+			else if (arg.toLowerCase().startsWith("-think="))
+				think = Math.max(0, Integer.parseInt(arg.substring("-think=".length())));
+			else if (arg.toLowerCase().startsWith("-out="))
+				out = arg.substring("-out=".length());
+			else
+				servers.add(arg);
+		}
+		
+		// The binary protocol keeps its connections open, and has no batch requests.
+		if (binary)
+		{
+			keepAlive = true;
+			batch = 1;
+		}
+		
+		if (servers.size() < 1) // When no argument, local host is the default server.
 			primaryServer = "localhost";
-		else if (args.length == 1) // With one argument, the IP address passed is the primary server.
-			primaryServer = args[0];
-		else if (args.length > 1) // When there are two arguments, the first one is primary, the second one is secondary.
+		else if (servers.size() == 1) // With one argument, the IP address passed is the primary server.
+			primaryServer = servers.get(0);
+		else if (servers.size() > 1) // When there are two arguments, the first one is primary, the second one is secondary.
 		{
-			primaryServer = args[0];
-			secondServer = args[1];
+			primaryServer = servers.get(0);
+			secondServer = servers.get(1);
 			second = true; // Turn on the flag to true saying a secondary server is connected.
 			
 			// Check if the two servers are different, if so, turn on the flag.
@@ -112,11 +276,48 @@ public class JokeClient
 		}
 
 		System.out.println("Wenwen Zhang's JokeClient. \n");
-		System.out.println("Primary server: " + primaryServer + ", Port: " + port1 + ".\n");
+		
+		// A load test counts a request which takes too long as an error, instead of waiting for it.
+		if (load > 0 && deadline == 0)
+			deadline = 5000;
+		
+		// The requests are sent by one asynchronous client for each server, or one for the whole fleet, which 
+		// waits for each server a limited time. The user keeps the states of every server.
+		AsyncJokeClient client1;
+		AsyncJokeClient client2 = null;
+		if (fleetServers != null)
+		{
+			if (timeout == 0)
+				timeout = 1000;
+			if (deadline == 0)
+				deadline = 2000;
+			fleet = new Fleet(fleetServers, port1, timeout);
+			fleet.start(probe);
+			client1 = new AsyncJokeClient(fleet, keepAlive, binary, connections, timeout);
+			System.out.println("Fleet of servers: " + fleet + ".\n");
+		}
+		else
+		{
+			client1 = new AsyncJokeClient(new Fleet(primaryServer + ":" + port1, port1, timeout), keepAlive, binary, connections, timeout);
+			System.out.println("Primary server: " + primaryServer + ", Port: " + port1 + ".\n");
+		}
+		JokeUser user = new JokeUser(ID, initialState, sharedState);
+		
+		// Run the load test on the primary server or the fleet, without the console.
+		if (load > 0)
+		{
+			LoadGenerator generator = new LoadGenerator(client1, load, rate, think, batch, deadline);
+			generator.run(warmup, duration);
+			generator.report(out != null? out: "load-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".json", 
+					(fleet != null? fleet.toString(): primaryServer + ":" + port1));
+			client1.close();
+			System.exit(0);
+		}
 		
 		// Print the information of the secondary server if present.
-		if(second)
+		if(second && fleet == null)
 		{
+			client2 = new AsyncJokeClient(new Fleet(secondServer + ":" + port2, port2, timeout), keepAlive, binary, connections, timeout);
 			System.out.println("Secondary server: " + secondServer + ", Port: " + port2 + ".\n");
 		}
 
@@ -148,21 +349,24 @@ public class JokeClient
 				if(entry.equals("")) 
 				{
 					// Send a request to the secondary server when there is a secondary server 
-					// and it is different from the primary server.
+					// and it is different from the primary server, otherwise to the primary server or the fleet.
 					if(serverOn.equals("S") && differentServer)  
 					{		
-						getSomething(secondServer, port2, ID, state2);
+						getSomething(client2, user, buffer2);
 					}
-					// Send a request to the primary server with state1.
 					else
 					{
-						getSomething(primaryServer, port1, ID, state1);
+						getSomething(client1, user, buffer1);
 					}
 				}
 				// If the input is 's', switch the server.
 				else if(entry.toLowerCase().equals("s")) // make the input consistently lower case so that it can be compared with 's'.
 				{
-					if(second) // Do the following only when a secondary server is connected.
+					if (fleet != null) // The servers of a fleet are chosen for each request.
+					{
+						System.out.println("Each request goes to a server of the fleet: " + fleet + ".\n");
+					}
+					else if(second) // Do the following only when a secondary server is connected.
 					{
 						// Switch the servers, and print summary messages on the console.
 						
@@ -201,140 +405,998 @@ public class JokeClient
 		}
 	}
 
-	public static void getSomething(String serverName, int port, String id, int s)
+	// Show the next joke/proverb: the next buffered item of a batch, or the one the server sends back.
+	// The request is sent by the asynchronous client, the console just waits for its reply.
+	public static void getSomething(AsyncJokeClient client, JokeUser user, ArrayDeque<String[]> buffer)
 	{
-		Socket sock; // Create a local socket.
+		if (buffer.isEmpty())
+		{
+			try
+			{
+				JokeReply reply = client.next(user, batch, deadline).get();
+				
+				// Read the current mode of the server, which is used to get the correct output index.
+				mode = reply.mode;
+				
+				// Each item comes with the state after it, which gives its output index.
+				for (String[] item : reply.items)
+				{
+					buffer.add(new String[] {getIndex(item[0]), item[1], reply.server});
+				}
+			}
+			catch (InterruptedException | ExecutionException x)
+			{
+				System.out.println("Socket error.");
+				(x.getCause() != null? x.getCause(): x).printStackTrace();
+				return;
+			}
+		}
 		
-		BufferedReader fromServer;
-		PrintStream toServer; 
-		String textFromServer;
-		String index;
-
-		try
+		String[] item = buffer.poll();
+		if (item == null)
+			return;
+		if (fleet != null) // Show which server of the fleet sent the item.
+			System.out.print("<" + item[2] + "> ");
+		printItem(item[0], item[1]);
+	}
+	
+	// Print a joke/proverb with its output index and the user name.
+	public static void printItem(String index, String textFromServer)
+	{
+		// If there is a secondary server, add <S2> in front of the regular outputs.
+		if(serverOn.equals("S")) 
+		{
+			System.out.print("<S2> ");
+		}
+		
+		// Print the correct index according to the state, and the user name.
+		System.out.print(index + name + ": ");
+		
+		// Print the joke/proverb sent from the server.
+		if (textFromServer != null)
+			System.out.print(textFromServer);
+		System.out.println();
+		System.out.println();
+	}
+	
+	// Using the updated client state to get the correct output index: the mode letter, and the letter 
+	// of the item in its deck, A for the first one.
+	public static String getIndex(String state)
+	{
+		int sent = Math.max(1, sent(state)); // Number of items of the deck sent, this one included.
+		
+		// Based on the server mode, get the correct output index.
+		// P for proverbs, J for jokes.
+		return mode + (sent <= 26? String.valueOf((char) ('A' + sent - 1)): String.valueOf(sent)) + " ";
+	}
+	
+	// The number of items of the current deck sent, which is the number of bits turned on for the mode.
+	public static int sent(String state)
+	{
+		// Get the corresponding four bits of an 8-bits state according to the server mode.
+		if (!state.startsWith("#"))
+			return Integer.bitCount(Integer.parseInt(state) & (mode.equals("P")? PMask: mode.equals("J")? JMask: 0));
+		
+		// Find the mode letter in a version 2 state, its mask follows it. A stateless server adds 
+		// the entries of its token, their codes are never a mode letter and they are carried as they are.
+		byte[] b = hex(state);
+		int i = 0;
+		while (i < b.length)
 		{
-			// Create a socket connecting to the the server and the specified port number passed in.
-			sock = new Socket(serverName, port); 
+			int letter = b[i++] & 0xFF;
+			long mask = 0;
+			for (int shift = 0; i < b.length; shift += 7)
+			{
+				int x = b[i++];
+				mask |= (long) (x & 0x7F) << shift;
+				if (x >= 0)
+					break;
+			}
+			if (letter == mode.charAt(0))
+				return Long.bitCount(mask);
+		}
+		return 0;
+	}
+	
+	// The bytes of a version 2 state, written in hex after the '#'.
+	public static byte[] hex(String state)
+	{
+		byte[] b = new byte[(state.length() - 1) / 2];
+		for (int i = 0; i < b.length; i++)
+		{
+			b[i] = (byte) Integer.parseInt(state.substring(1 + 2 * i, 3 + 2 * i), 16);
+		}
+		return b;
+	}
 
-			// Create a bufferedReader object to buffer the input stream got from the socket.
-			fromServer = new BufferedReader(new InputStreamReader(sock.getInputStream()));
-			
-			// Create a printStream to store the output stream that will be sending to the server.
-			toServer = new PrintStream(sock.getOutputStream());
-			
-			// Tell the server the unique ID of this client.
-			toServer.println(id);
-			toServer.flush();
-			
-			// Send the client's state.
-			toServer.println(s);
-			toServer.flush();
+}
 
-			// Read the current mode of the server, which is used to get the correct output index.
-			mode = fromServer.readLine();
-			
-			// Check if a secondary server is available and is different from primary server.
-			if(serverOn.equals("S") && differentServer)
+
+// A client of the joke servers which other programs may use. It is thread-safe: any number of callers may 
+// share one client, their requests are sent over a few connections to each server ("connections"), one 
+// after the other without waiting for the replies, and each call returns at once with a CompletableFuture 
+// of its reply. A request goes to a server picked by the fleet, and when it fails or times out it goes to 
+// another server, until its deadline. Without keep-alive, each request has its own connection, for the 
+// servers which only answer one request per connection. No caller ever waits for the network: the 
+// connections are opened by the connector threads, and the replies, the failures and the retries are 
+// handled by the callback threads, so the timer thread only completes the requests which timed out.
+class AsyncJokeClient implements Closeable
+{
+	// Times out the requests, shared by every client.
+	static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> daemon(r, "joke-timer"));
+	
+	// Open the connections, each one may wait up to the connect timeout for its server.
+	static final ExecutorService connector = Executors.newCachedThreadPool(r -> daemon(r, "joke-connect"));
+	
+	// Handle the replies and the failures, send the retries, and the requests a caller delays.
+	static final ExecutorService callbacks = Executors.newCachedThreadPool(r -> daemon(r, "joke-callback"));
+	
+	Fleet fleet; // The servers.
+	boolean keepAlive; // True if the connections stay open and carry many requests.
+	boolean binary; // True for the binary framed protocol.
+	int connections; // Connections kept open to each server.
+	int connectTimeout; // Milliseconds to wait for a connection, 0 to wait as long as it takes.
+	Map<FleetServer, CompletableFuture<JokeConnection>[]> pools = new ConcurrentHashMap<>(); // The connections kept open, by server.
+	
+	AsyncJokeClient(Fleet fleet, boolean keepAlive, boolean binary, int connections, int connectTimeout)
+	{
+		this.fleet = fleet;
+		this.keepAlive = keepAlive || binary;
+		this.binary = binary;
+		this.connections = Math.max(1, connections);
+		this.connectTimeout = connectTimeout;
+	}
+	
+	// Ask for the next joke/proverb of the user, a batch of up to max items if max is more than 1, within 
+	// timeout ms (0 for no limit). The user's state on the server which answers is moved on by the reply. 
+	// A user should have one request in flight at a time, since each request follows the state of the last one.
+	CompletableFuture<JokeReply> next(JokeUser user, int max, long timeout)
+	{
+		CompletableFuture<JokeReply> result = new CompletableFuture<>();
+		attempt(user, user.id, null, max, deadline(timeout), new ArrayList<>(), true, result);
+		return result;
+	}
+	
+	// The same, for a caller which keeps the state itself: the state of the reply is the one to send next.
+	CompletableFuture<JokeReply> request(String id, String state, int max, long timeout)
+	{
+		CompletableFuture<JokeReply> result = new CompletableFuture<>();
+		attempt(null, id, state, max, deadline(timeout), new ArrayList<>(), true, result);
+		return result;
+	}
+	
+	static long deadline(long timeout)
+	{
+		return (timeout > 0? System.currentTimeMillis() + timeout: Long.MAX_VALUE);
+	}
+	
+	static Thread daemon(Runnable r, String name)
+	{
+		Thread t = new Thread(r, name);
+		t.setDaemon(true);
+		return t;
+	}
+	
+	// The failure itself, out of the CompletionException of a connection opened in the background.
+	static Throwable cause(Throwable x)
+	{
+		return (x instanceof CompletionException && x.getCause() != null? x.getCause(): x);
+	}
+	
+	// Send the request to the next server the fleet picks, and complete the result with its reply, or try 
+	// again on another server when it fails. A kept open connection which the server closed while idle 
+	// is not the server's fault, so the same server is tried once more. The timeout starts before the 
+	// connection is opened, so a server which does not accept the connection times out as well.
+	void attempt(JokeUser user, String id, String state, int max, long deadline, List<FleetServer> tried, 
+			boolean retryStale, CompletableFuture<JokeReply> result)
+	{
+		long left = deadline - System.currentTimeMillis();
+		FleetServer server = (left > 0? fleet.pick(tried): null);
+		if (server == null)
+		{
+			result.completeExceptionally(left > 0? new ConnectException("No server of " + fleet + " answered"): 
+					new TimeoutException("No reply from " + fleet + " in time"));
+			return;
+		}
+		tried.add(server);
+		server.inflight.incrementAndGet();
+		long start = System.nanoTime();
+		
+		CompletableFuture<JokeReply> sent = new CompletableFuture<>();
+		ScheduledFuture<?> timeout = (deadline == Long.MAX_VALUE? null: timer.schedule(
+				() -> sent.completeExceptionally(new TimeoutException("No reply from " + server + " in time")), left, TimeUnit.MILLISECONDS));
+		connection(server).whenComplete((conn, x) -> {
+			if (x != null)
 			{
-				// If so, get state2 and obtain the output index.
-				state2 = Integer.parseInt(fromServer.readLine());
-				index = getIndex(state2);
+				sent.completeExceptionally(cause(x));
+				return;
+			}
+			if (sent.isDone()) // Timed out while connecting, a connection of its own is not needed any more.
+			{
+				if (!keepAlive)
+					conn.close(new IOException("Request timed out"));
+				return;
+			}
+			try
+			{
+				conn.send(id, (user != null? user.state(server.toString()): state), max).whenComplete((reply, y) -> {
+					if (y == null)
+						sent.complete(reply);
+					else
+						sent.completeExceptionally(y);
+				});
+			}
+			catch (IOException y)
+			{
+				sent.completeExceptionally(y);
+			}
+		});
+		
+		sent.whenCompleteAsync((reply, x) -> {
+			if (timeout != null)
+				timeout.cancel(false);
+			server.inflight.decrementAndGet();
+			if (x == null)
+			{
+				server.record(System.nanoTime() - start);
+				server.timeouts.set(0);
+				if (user != null)
+					user.update(server.toString(), reply.state);
+				result.complete(reply);
+				return;
 			}
 			
-			// If this client is connected to the primary server, get the updated state1 from the server, 
-			// and get the corresponding output index.
-			else
+			if (retryStale && x instanceof StaleConnectionException)
+			{
+				tried.remove(server);
+				attempt(user, id, state, max, deadline, tried, false, result);
+				return;
+			}
+			server.failed(x);
+			attempt(user, id, state, max, deadline, tried, retryStale, result);
+		}, callbacks);
+	}
+	
+	// A connection to the server: one of its pool, opened when needed, or a new one without keep-alive. 
+	// The connection is opened by a connector thread, the lock of the pool is only held to take its place.
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	CompletableFuture<JokeConnection> connection(FleetServer server)
+	{
+		if (!keepAlive)
+			return open(server, false);
+		
+		CompletableFuture<JokeConnection>[] pool = pools.computeIfAbsent(server, s -> new CompletableFuture[connections]);
+		int i = ThreadLocalRandom.current().nextInt(pool.length);
+		synchronized (pool)
+		{
+			CompletableFuture<JokeConnection> conn = pool[i];
+			if (conn == null || conn.isCompletedExceptionally() || (conn.isDone() && conn.join().closed))
+				pool[i] = open(server, true);
+			return pool[i];
+		}
+	}
+	
+	// Open a connection to the server in the background.
+	CompletableFuture<JokeConnection> open(FleetServer server, boolean pooled)
+	{
+		return CompletableFuture.supplyAsync(() -> {
+			try
 			{
-				state1 = Integer.parseInt(fromServer.readLine());
-				index = getIndex(state1);
+				return new JokeConnection(server, pooled, pooled && binary, connectTimeout);
 			}
+			catch (IOException x)
+			{
+				throw new CompletionException(x);
+			}
+		}, connector);
+	}
+	
+	// Close every connection kept open, the requests waiting for a reply fail.
+	public void close()
+	{
+		for (CompletableFuture<JokeConnection>[] pool : pools.values())
+		{
+			synchronized (pool)
+			{
+				for (CompletableFuture<JokeConnection> conn : pool)
+				{
+					if (conn != null)
+						conn.thenAccept(c -> c.close(new IOException("Client closed")));
+				}
+			}
+		}
+	}
+}
+
+// The reply to a request: the mode, the updated state and the joke/proverb, and the server which sent it. 
+// A batch holds several items, each one with the state after it, the state of the reply is the last one.
+class JokeReply
+{
+	final String mode; // The server mode.
+	final String state; // The updated state.
+	final List<String[]> items; // The state after each item, and the item.
+	final String server; // host:port of the server.
+	
+	JokeReply(String mode, String state, List<String[]> items, String server)
+	{
+		this.mode = mode;
+		this.state = state;
+		this.items = Collections.unmodifiableList(items);
+		this.server = server;
+	}
+	
+	// The first joke/proverb of the reply.
+	String text() {return (items.isEmpty()? null: items.get(0)[1]);}
+}
+
+// A user of the servers: its UUID, and its state on each server, or one state for all of them when shared.
+class JokeUser
+{
+	final String id;
+	final boolean shared;
+	String state; // The state of a user with a shared state, and the state of a server not asked yet.
+	Map<String, String> states = new HashMap<>(); // The state on each server, by host:port.
+	
+	JokeUser(String id, String initial, boolean shared)
+	{
+		this.id = id;
+		this.state = initial;
+		this.shared = shared;
+	}
+	
+	synchronized String state(String server)
+	{
+		return (shared? state: states.getOrDefault(server, state));
+	}
+	
+	synchronized void update(String server, String updated)
+	{
+		if (shared)
+			state = updated;
+		else
+			states.put(server, updated);
+	}
+}
 
-			// Get the joke/server sent from the server.
-			textFromServer = fromServer.readLine(); 
+// A kept open connection which the server closed, most likely because it stayed idle too long.
+class StaleConnectionException extends IOException
+{
+	private static final long serialVersionUID = 1L;
+	StaleConnectionException(String message) {super(message);}
+}
 
-			// If there is a secondary server, add <S2> in front of the regular outputs.
-			if(serverOn.equals("S")) 
+// A connection to a server. With version 2 of the protocol it stays open and carries many requests, 
+// which are written one after the other by the callers, without waiting for the replies. The server 
+// answers them in order, so a reader thread takes the replies and completes the waiting requests in 
+// the same order. The bytes of the requests are flushed together: a caller flushes only when no 
+// other caller is about to, so under load many requests go out in one write.
+class JokeConnection
+{
+	FleetServer server; // The server.
+	Socket sock; // The local socket.
+	OutputStream out; // Buffers the requests.
+	BufferedReader fromServer; // Reads the replies of the text protocol.
+	DataInputStream frameIn; // Reads the reply frames of the binary protocol, null for the text protocol.
+	boolean keepAlive; // True if the connection carries many requests.
+	ConcurrentLinkedQueue<Pending> pending = new ConcurrentLinkedQueue<>(); // Requests waiting for their reply, in order.
+	AtomicBoolean flushing = new AtomicBoolean(); // True while a caller is about to flush.
+	volatile boolean closed; // True once the connection failed or was closed.
+	boolean answered; // True once a reply came back, so a closed connection is no longer stale.
+	
+	// A request waiting for its reply, with what is needed to read the reply.
+	static class Pending
+	{
+		CompletableFuture<JokeReply> future = new CompletableFuture<>();
+		boolean wide; // True if the state is a version 2 state.
+		int max; // Number of items asked for.
+	}
+	
+	JokeConnection(FleetServer server, boolean keepAlive, boolean binary, int connectTimeout) throws IOException
+	{
+		this.server = server;
+		this.keepAlive = keepAlive;
+		
+		// Create a socket connecting to the the server and the specified port number passed in.
+		sock = new Socket();
+		sock.connect(new InetSocketAddress(server.host, server.port), connectTimeout);
+		sock.setTcpNoDelay(true);
+		out = new BufferedOutputStream(sock.getOutputStream());
+		if (binary)
+			frameIn = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+		else
+			fromServer = new BufferedReader(new InputStreamReader(sock.getInputStream(), "UTF-8"));
+		
+		// Tell the server that this connection will carry many requests.
+		if (keepAlive && !binary)
+			out.write((JokeClient.HELLO_V2 + "\n").getBytes("UTF-8"));
+		
+		Thread reader = new Thread(this::read, "joke-reader-" + server);
+		reader.setDaemon(true);
+		reader.start();
+	}
+	
+	// Send the id and the state, and the batch size when more than 1 item is asked for.
+	CompletableFuture<JokeReply> send(String id, String s, int max) throws IOException
+	{
+		Pending p = new Pending();
+		p.wide = s.startsWith("#");
+		p.max = max;
+		byte[] request = (frameIn != null? frame(id, s, max): (id + "\n" + s + (max > 1? " " + max: "") + "\n").getBytes("UTF-8"));
+		
+		synchronized (this)
+		{
+			if (closed)
+				throw new IOException("Connection closed");
+			pending.add(p);
+			out.write(request);
+		}
+		
+		// Flush, unless another caller set the flag and has not flushed yet: it will flush this request too.
+		if (flushing.compareAndSet(false, true))
+		{
+			synchronized (this)
 			{
-				System.out.print("<S2> ");
+				flushing.set(false);
+				try
+				{
+					out.flush();
+				}
+				catch (IOException x)
+				{
+					close(x);
+				}
 			}
-			
-			// Print the correct index according to the state, and the user name.
-			System.out.print(index + name + ": ");
-			
-			// Print the joke/proverb sent from the server.
-			if (textFromServer != null)
-				System.out.print(textFromServer);
-			System.out.println();
-			System.out.println();
-
-			sock.close(); // Close the local socket.
 		}
-		catch(IOException x)
+		return p.future;
+	}
+	
+	// A binary request frame: the marker, the length, the 16 bytes of the UUID and the 1-byte state.
+	// A version 2 state is sent as its bytes. The binary protocol has no batches.
+	static byte[] frame(String id, String s, int max) throws IOException
+	{
+		if (max > 1)
+			throw new IOException("Batches need the text protocol");
+		boolean wide = s.startsWith("#");
+		byte[] sent = (wide? JokeClient.hex(s): new byte[] {(byte) Integer.parseInt(s)});
+		
+		UUID uuid = UUID.fromString(id);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream frame = new DataOutputStream(bytes);
+		frame.writeByte(JokeClient.REQUEST_FRAME);
+		frame.writeShort(16 + sent.length);
+		frame.writeLong(uuid.getMostSignificantBits());
+		frame.writeLong(uuid.getLeastSignificantBits());
+		frame.write(sent);
+		return bytes.toByteArray();
+	}
+	
+	// The reader thread: read each reply and complete the oldest waiting request with it.
+	void read()
+	{
+		try
 		{
-			System.out.println("Socket error.");
-			x.printStackTrace();
+			while (true)
+			{
+				JokeReply reply = (frameIn != null? readFrame(): readLines());
+				if (reply == null) // A connection which already answered was most likely closed while idle.
+					throw (answered? new StaleConnectionException("Connection closed by the server"): 
+							new EOFException("Connection closed by the server"));
+				answered = true;
+				pending.poll().future.complete(reply);
+				if (!keepAlive) // Older servers answer one request per connection.
+				{
+					close(new EOFException("Connection closed"));
+					return;
+				}
+			}
+		}
+		catch (IOException | RuntimeException x)
+		{
+			close(x instanceof IOException? (IOException) x: new IOException(x));
+		}
+	}
+	
+	// Read the mode, the updated state and the joke/proverb, then for a batch the count and each state and item.
+	// Returns null if the server closed the connection.
+	JokeReply readLines() throws IOException
+	{
+		String mode = fromServer.readLine();
+		if (mode == null)
+			return null;
+		String state = fromServer.readLine();
+		ArrayList<String[]> items = new ArrayList<>();
+		Pending p = pending.peek();
+		if (p == null || p.max <= 1)
+		{
+			items.add(new String[] {state, fromServer.readLine()});
+		}
+		else
+		{
+			int count = Integer.parseInt(fromServer.readLine());
+			for (int i = 0; i < count; i++)
+			{
+				items.add(new String[] {fromServer.readLine(), fromServer.readLine()});
+			}
 		}
+		return new JokeReply(mode, state, items, server.toString());
 	}
 	
-	// Using the updated client state to get the correct output index.
-	public static String getIndex(int n)
+	// Read a reply frame: the length, the 1-byte mode, the 1-byte state and the UTF-8 joke/proverb. 
+	// A version 2 state comes back as its length in one byte, then its bytes. Returns null at the end.
+	JokeReply readFrame() throws IOException
 	{
-		int ret = 0;
-		String s = null;
+		int length;
+		try
+		{
+			length = frameIn.readUnsignedShort();
+		}
+		catch (EOFException x) // The server closed the connection.
+		{
+			return null;
+		}
+		Pending p = pending.peek();
+		String mode = String.valueOf((char) frameIn.readUnsignedByte());
+		int state = frameIn.readUnsignedByte();
+		length -= 2;
 		
-		// Get the corresponding four bits according to the server mode.
-		int temp = (mode.equals("P")? (n ^ PMask):(n ^ JMask));
+		String updated = String.valueOf(state);
+		if (p != null && p.wide) // The byte read is the length of the state.
+		{
+			StringBuilder sb = new StringBuilder("#");
+			for (int i = 0; i < state; i++)
+			{
+				sb.append(String.format("%02x", frameIn.readUnsignedByte()));
+			}
+			updated = sb.toString();
+			length -= state;
+		}
 		
-		// Using offset to get each correct bit.
-		int offset = (mode.equals("P")? 0:4);
+		byte[] text = new byte[length];
+		frameIn.readFully(text);
+		ArrayList<String[]> items = new ArrayList<>();
+		items.add(new String[] {updated, new String(text, "UTF-8")});
+		return new JokeReply(mode, updated, items, server.toString());
+	}
+	
+	// Close the connection, and fail the requests still waiting for their reply.
+	void close(IOException x)
+	{
+		synchronized (this)
+		{
+			closed = true;
+		}
+		try {sock.close();}
+		catch (IOException e) {}
 		
-		for(int i = 0 + offset; i < 4 + offset; i++)
+		Pending p;
+		while ((p = pending.poll()) != null)
+		{
+			p.future.completeExceptionally(x);
+		}
+	}
+}
+
+// A fleet of servers, given by "-servers=" as host:port pairs, or a single server. A background thread 
+// probes each server with a request, which marks it healthy or not and measures its latency. Each 
+// request goes to the better of two healthy servers picked at random (the power of two choices), the one 
+// with the lower average latency weighted by its requests in flight, so a slow server gets less load 
+// without every client rushing to the fastest one. A server which fails is left out until a probe finds it 
+// again: one which can not be reached at once, one which is only slow after a few timeouts in a row.
+class Fleet
+{
+	static final double WEIGHT = 0.2; // Weight of the last latency in the moving average.
+	
+	List<FleetServer> servers = new ArrayList<>();
+	int timeout; // Milliseconds to wait for a probe to connect and be answered, 0 to wait as long as it takes.
+	
+	Fleet(String list, int port, int timeout)
+	{
+		for (String address : list.split(","))
+		{
+			servers.add(new FleetServer(address.trim(), port));
+		}
+		this.timeout = timeout;
+	}
+	
+	// Start probing the servers in the background, every probe ms.
+	void start(int probe)
+	{
+		Thread t = new Thread(() -> {
+			while (true)
+			{
+				for (FleetServer server : servers)
+				{
+					server.probe(timeout);
+				}
+				try {Thread.sleep(probe);}
+				catch (InterruptedException x) {return;}
+			}
+		}, "health-probe");
+		t.setDaemon(true);
+		t.start();
+	}
+	
+	// Pick the server of the next request among those not tried yet: the better of two healthy servers. 
+	// When none is healthy, the others are still tried, since they may have come back since the last probe.
+	FleetServer pick(List<FleetServer> tried)
+	{
+		ArrayList<FleetServer> healthy = new ArrayList<>();
+		ArrayList<FleetServer> others = new ArrayList<>();
+		for (FleetServer server : servers)
 		{
-			ret += (temp >> i) & 1; // Count the 1s in the corresponding four bits.
+			if (!tried.contains(server))
+				(server.healthy? healthy: others).add(server);
 		}
+		List<FleetServer> choice = (healthy.isEmpty()? others: healthy);
+		if (choice.size() <= 1)
+			return (choice.isEmpty()? null: choice.get(0));
 		
-		// Based on the server mode, get the correct output index.
-		// P for proverbs, J for jokes.
-		if(mode.equals("P"))
-		{			
-			switch(ret) 
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		int a = random.nextInt(choice.size());
+		int b = random.nextInt(choice.size() - 1);
+		if (b >= a)
+			b++;
+		return (choice.get(a).load() <= choice.get(b).load()? choice.get(a): choice.get(b));
+	}
+	
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder();
+		for (FleetServer server : servers)
+		{
+			sb.append(sb.length() > 0? ", ": "").append(server).append(server.healthy? "": " (down)");
+		}
+		return sb.toString();
+	}
+}
+
+// A server of the fleet, its health and its latency.
+class FleetServer
+{
+	static final int TIMEOUTS = 3; // Requests in a row which time out before the server is left out.
+	static final String PROBE_ID = "00000000-0000-0000-0000-000000000000"; // The client of the probes, one session on each server.
+	
+	String host;
+	int port;
+	volatile boolean healthy = true; // Set by the probes, cleared by a failed request.
+	AtomicInteger timeouts = new AtomicInteger(); // Requests in a row which timed out.
+	volatile double latency; // Moving average of the latency in ms, 0 until measured.
+	AtomicInteger inflight = new AtomicInteger(); // Requests sent and not answered yet.
+	
+	// A server given as host:port, or as host with the default port.
+	FleetServer(String address, int port)
+	{
+		int colon = address.lastIndexOf(':');
+		host = (colon < 0? address: address.substring(0, colon));
+		this.port = (colon < 0? port: Integer.parseInt(address.substring(colon + 1)));
+	}
+	
+	// The load used to choose between two servers.
+	double load() {return latency * (1 + inflight.get());}
+	
+	// Add a latency to the moving average.
+	synchronized void record(long nanos)
+	{
+		double ms = nanos / 1e6;
+		latency = (latency == 0? ms: latency + Fleet.WEIGHT * (ms - latency));
+	}
+	
+	// A request failed: the server is left out when it could not be reached or broke the connection, but 
+	// a timeout may only be a burst of load, so only a few of them in a row leave it out.
+	void failed(Throwable x)
+	{
+		if (!(x instanceof TimeoutException) || timeouts.incrementAndGet() >= TIMEOUTS)
+			healthy = false; // Until the next probe finds it again.
+	}
+	
+	// Ask the server for an item with a one-request connection, which it answers and closes like for any 
+	// older client, so the probe proves that requests are served, not only that the port is open.
+	void probe(int timeout)
+	{
+		long start = System.nanoTime();
+		try (Socket sock = new Socket())
+		{
+			sock.connect(new InetSocketAddress(host, port), timeout);
+			sock.setSoTimeout(timeout);
+			sock.getOutputStream().write((PROBE_ID + "\n0\n").getBytes("UTF-8"));
+			BufferedReader in = new BufferedReader(new InputStreamReader(sock.getInputStream(), "UTF-8"));
+			String mode = in.readLine();
+			String state = in.readLine();
+			if (mode == null || state == null || in.readLine() == null)
+				throw new EOFException("No reply to the probe");
+			record(System.nanoTime() - start);
+			timeouts.set(0);
+			healthy = true;
+		}
+		catch (IOException x)
+		{
+			healthy = false;
+		}
+	}
+	
+	public String toString() {return host + ":" + port;}
+}
+
+// A load test of the servers: many simulated users, each one with its own UUID and state, send their requests 
+// through one asynchronous client. In an open loop, the requests are sent at a fixed rate shared by the users, 
+// whether the replies keep up or not: a user still waiting for its reply keeps its next requests until then, 
+// since each request follows the state of the last one. In a closed loop, each user sends its next request when 
+// it has its reply. Only the requests which should have been sent after the warm-up and before the end are measured.
+class LoadGenerator
+{
+	AsyncJokeClient client; // Sends the requests.
+	LoadUser[] users; // The simulated users.
+	double rate; // Requests per second of all the users, 0 for a closed loop.
+	long think; // Milliseconds a user of a closed loop waits between a reply and its next request.
+	int max; // Items asked for in one request.
+	long timeout; // Milliseconds a request may take.
+	
+	long start, measure, end; // nanoTime of the start, of the end of the warm-up, and of the end.
+	LatencyHistogram latency = new LatencyHistogram(); // From the time a request should have been sent, corrected.
+	LatencyHistogram service = new LatencyHistogram(); // From the time a request was sent.
+	AtomicLong ok = new AtomicLong(); // Replies measured.
+	AtomicLong errors = new AtomicLong(); // Requests measured which failed or timed out.
+	AtomicLong outstanding = new AtomicLong(); // Requests due and not answered yet, waiting ones included.
+	AtomicLong replies = new AtomicLong(); // Every reply, and the sum of their latency in ns, 
+	AtomicLong replyNanos = new AtomicLong(); // which gives the usual time between requests of a closed loop.
+	
+	// A simulated user, and the times its next requests should have been sent while it waits for a reply.
+	static class LoadUser
+	{
+		JokeUser user;
+		ArrayDeque<Long> waiting = new ArrayDeque<>();
+		boolean busy; // True while a request is in flight.
+		
+		LoadUser(JokeUser user) {this.user = user;}
+	}
+	
+	LoadGenerator(AsyncJokeClient client, int users, double rate, long think, int max, long timeout)
+	{
+		this.client = client;
+		this.users = new LoadUser[users];
+		for (int i = 0; i < users; i++)
+		{
+			this.users[i] = new LoadUser(new JokeUser(UUID.randomUUID().toString(), JokeClient.initialState, JokeClient.sharedState));
+		}
+		this.rate = rate;
+		this.think = think;
+		this.max = max;
+		this.timeout = timeout;
+	}
+	
+	// Send the requests for warmup and then duration seconds, and wait for the replies of those already due.
+	void run(int warmup, int duration)
+	{
+		System.out.println("Load test: " + users.length + " users, " + (rate > 0? "open loop at " + rate + " requests/s": 
+				"closed loop" + (think > 0? " with " + think + " ms between requests": "")) + ", " + warmup + " s of warm-up, then " + duration + " s.\n");
+		start = System.nanoTime();
+		measure = start + TimeUnit.SECONDS.toNanos(warmup);
+		end = measure + TimeUnit.SECONDS.toNanos(duration);
+		
+		if (rate > 0)
+		{
+			// The k-th request should be sent at start + k / rate, by the next user in turn. When the pacing 
+			// falls behind, the late requests are sent at once, they still count from the time they were due.
+			double interval = 1e9 / rate;
+			for (long k = 0; ; k++)
 			{
-			case 3:
-				s = "PA ";
-				break;
-			case 2:
-				s = "PB ";
-				break;
-			case 1:
-				s = "PC ";
-				break;
-			case 0:
-				s = "PD ";
-				break;
+				long due = start + (long) (k * interval);
+				if (due >= end)
+					break;
+				long wait;
+				while ((wait = due - System.nanoTime()) > 0)
+					LockSupport.parkNanos(wait);
+				outstanding.incrementAndGet();
+				LoadUser u = users[(int) (k % users.length)];
+				synchronized (u)
+				{
+					if (u.busy)
+					{
+						u.waiting.add(due);
+						continue;
+					}
+					u.busy = true;
+				}
+				send(u, due);
 			}
-			
-			return s;
 		}
 		else
-		{					
-			switch(ret) 
+		{
+			for (LoadUser u : users)
 			{
-			case 3:
-				s = "JA ";
-				break;
-			case 2:
-				s = "JB ";
-				break;
-			case 1:
-				s = "JC ";
-				break;
-			case 0:
-				s = "JD ";
-				break;
+				outstanding.incrementAndGet();
+				send(u, System.nanoTime());
 			}
-			
-			return s;
+			long wait;
+			while ((wait = end - System.nanoTime()) > 0)
+				LockSupport.parkNanos(wait);
 		}
 		
+		// Wait for the replies still due, no longer than a request may take.
+		long limit = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		while (outstanding.get() > 0 && System.nanoTime() < limit)
+			LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+	}
+	
+	// Send the next request of a user, which should have been sent at due.
+	void send(LoadUser u, long due)
+	{
+		long sent = System.nanoTime();
+		client.next(u.user, max, timeout).whenComplete((reply, x) -> done(u, due, sent, x));
 	}
+	
+	// Count the reply of a request, and send the next one of the user.
+	void done(LoadUser u, long due, long sent, Throwable x)
+	{
+		long now = System.nanoTime();
+		if (x == null)
+		{
+			replies.incrementAndGet();
+			replyNanos.addAndGet(now - sent);
+		}
+		if (due >= measure && due < end)
+		{
+			if (x != null)
+				errors.incrementAndGet();
+			else
+			{
+				ok.incrementAndGet();
+				service.record((now - sent) / 1000);
+				
+				// In a closed loop a slow reply kept the user from sending the requests it would have sent 
+				// meanwhile, one every usual time between two requests, they count as well.
+				long usual = (rate > 0? 0: (think * 1000000 + replyNanos.get() / Math.max(1, replies.get())) / 1000);
+				latency.record((now - due) / 1000, usual);
+			}
+		}
+		
+		if (rate > 0)
+		{
+			Long next;
+			synchronized (u)
+			{
+				next = u.waiting.poll();
+				if (next == null)
+					u.busy = false;
+			}
+			outstanding.decrementAndGet();
+			if (next != null)
+				send(u, next);
+			return;
+		}
+		
+		outstanding.decrementAndGet();
+		if (now >= end)
+			return;
+		outstanding.incrementAndGet();
+		
+		// A user waits a little after a failure, so that a server which is down is not flooded.
+		long pause = (x != null? Math.max(think, 10): think);
+		if (pause > 0)
+			AsyncJokeClient.timer.schedule(() -> AsyncJokeClient.callbacks.execute(() -> send(u, System.nanoTime())), pause, TimeUnit.MILLISECONDS);
+		else
+			send(u, now);
+	}
+	
+	// Print the results, and write them as JSON to the file, so that the runs may be compared.
+	void report(String file, String servers)
+	{
+		double seconds = (end - measure) / 1e9;
+		long unfinished = outstanding.get();
+		System.out.println(String.format(Locale.ROOT, "Requests: %d replies, %d errors, %d unfinished, %.1f requests/s.", 
+				ok.get(), errors.get(), unfinished, ok.get() / seconds));
+		System.out.println("Latency (ms, corrected): " + latency.summary());
+		System.out.println("Service time (ms):       " + service.summary() + "\n");
+		
+		StringBuilder json = new StringBuilder("{\n");
+		json.append("  \"servers\": \"").append(servers).append("\",\n");
+		json.append("  \"protocol\": \"").append(client.binary? "binary": client.keepAlive? "keepalive": "text").append("\",\n");
+		json.append("  \"users\": ").append(users.length).append(",\n");
+		json.append("  \"loop\": \"").append(rate > 0? "open": "closed").append("\",\n");
+		json.append(String.format(Locale.ROOT, "  \"rate\": %.1f,\n", rate));
+		json.append("  \"think_ms\": ").append(think).append(",\n");
+		json.append("  \"batch\": ").append(max).append(",\n");
+		json.append(String.format(Locale.ROOT, "  \"warmup_s\": %.1f,\n", (measure - start) / 1e9));
+		json.append(String.format(Locale.ROOT, "  \"duration_s\": %.1f,\n", seconds));
+		json.append("  \"replies\": ").append(ok.get()).append(",\n");
+		json.append("  \"errors\": ").append(errors.get()).append(",\n");
+		json.append("  \"unfinished\": ").append(unfinished).append(",\n");
+		json.append(String.format(Locale.ROOT, "  \"throughput\": %.1f,\n", ok.get() / seconds));
+		json.append("  \"latency_us\": ").append(latency.json()).append(",\n");
+		json.append("  \"service_us\": ").append(service.json()).append("\n}\n");
+		
+		try (Writer w = new OutputStreamWriter(new FileOutputStream(file), "UTF-8"))
+		{
+			w.write(json.toString());
+			System.out.println("Results written to " + file + ".");
+		}
+		catch (IOException x)
+		{
+			System.out.println("Could not write " + file + ": " + x.getMessage());
+		}
+	}
+}
 
-}
\ No newline at end of file
+// A histogram of latencies in microseconds, which any number of threads may record into. Each power of 2 
+// is split in 128 buckets, so a value is known to within 1%, from 1 us to hours in a few thousand buckets.
+class LatencyHistogram
+{
+	static final int SUB_BITS = 8; // A value below 2^SUB_BITS has its own bucket.
+	static final int SUB = 1 << SUB_BITS;
+	static final int HALF = SUB / 2; // Buckets of each power of 2 above SUB.
+	
+	AtomicLongArray counts = new AtomicLongArray((64 - SUB_BITS) * HALF + SUB);
+	AtomicLong count = new AtomicLong();
+	AtomicLong sum = new AtomicLong();
+	AtomicLong max = new AtomicLong();
+	
+	// The bucket of a value: the value itself when small, or its power of 2 and its SUB_BITS - 1 next bits.
+	static int index(long value)
+	{
+		if (value < SUB)
+			return (int) value;
+		int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BITS - 1);
+		return (shift << (SUB_BITS - 1)) + (int) (value >>> shift);
+	}
+	
+	// The highest value of a bucket.
+	static long highest(int index)
+	{
+		if (index < SUB)
+			return index;
+		int shift = index / HALF - 1;
+		long m = index % HALF + HALF;
+		return ((m + 1) << shift) - 1;
+	}
+	
+	void record(long value)
+	{
+		value = Math.max(0, value);
+		counts.incrementAndGet(index(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		max.accumulateAndGet(value, Math::max);
+	}
+	
+	// Record a value, and when it is longer than the expected time between two requests, the requests which 
+	// waited behind it as well: one expected time less each, down to the expected time (coordinated omission).
+	void record(long value, long expected)
+	{
+		record(value);
+		if (expected <= 0)
+			return;
+		for (long missed = value - expected; missed >= expected; missed -= expected)
+			record(missed);
+	}
+	
+	// The value which p percent of the values are at most.
+	long percentile(double p)
+	{
+		long total = count.get();
+		if (total == 0)
+			return 0;
+		long rank = Math.max(1, (long) Math.ceil(p / 100 * total));
+		long seen = 0;
+		for (int i = 0; i < counts.length(); i++)
+		{
+			seen += counts.get(i);
+			if (seen >= rank)
+				return Math.min(highest(i), max.get());
+		}
+		return max.get();
+	}
+	
+	double mean() {return (count.get() == 0? 0: (double) sum.get() / count.get());}
+	
+	String summary()
+	{
+		return String.format(Locale.ROOT, "mean %.3f, p50 %.3f, p90 %.3f, p99 %.3f, p99.9 %.3f, max %.3f", mean() / 1000, 
+				percentile(50) / 1000.0, percentile(90) / 1000.0, percentile(99) / 1000.0, percentile(99.9) / 1000.0, max.get() / 1000.0);
+	}
+	
+	String json()
+	{
+		return String.format(Locale.ROOT, "{\"count\": %d, \"mean\": %.1f, \"p50\": %d, \"p90\": %d, \"p99\": %d, \"p99.9\": %d, \"p99.99\": %d, \"max\": %d}", 
+				count.get(), mean(), percentile(50), percentile(90), percentile(99), percentile(99.9), percentile(99.99), max.get());
+	}
+}
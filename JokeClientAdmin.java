@@ -35,6 +35,12 @@
 		If a second argument is presented, then the first argument is the 
 		primary server, and the second one is the secondary server.
 			> java JokeClientAdmin localhost 140.192.1.22
+			
+		With "-binary", the commands are sent in binary frames.
+			> java JokeClientAdmin -binary localhost
+			
+		With "-port=", the commands go to a server started with "-adminport=".
+			> java JokeClientAdmin -port=6101 localhost
 
 5. List of files needed for running the program.
 
@@ -52,10 +58,11 @@
 
 import java.io.*; // Import the input/output package
 import java.net.*; // Import the Java networking package
+import java.util.ArrayList; // Hold the server names passed as arguments.
 
 public class JokeClientAdmin
 {
-	// Two port number, port1 for primary server, port2 for secondary server.
+	// Two port number, port1 for primary server, port2 for secondary server, moved by "-port=".
 	public static int port1 = 5050;
 	public static int port2 = 5051;
 	
@@ -65,19 +72,40 @@ public class JokeClientAdmin
 	// A string flag to check if the current connected server is primary or secondary, primary is the default setting.
 	public static String serverOn = "P";
 	
+	// A boolean flag to check if the commands are sent in binary frames, turned on by "-binary".
+	public static boolean binary = false;
+	
+	// Marker of a binary admin command frame.
+	public static final int ADMIN_FRAME = 0xB2;
+	
 	public static void main(String args[])
 	{
 		String primaryServer = null; // Primary server name.
 		String secondServer = null; // Secondary server name.
 		
-		if (args.length < 1) // When no argument, local host is the default server.
+		// Take the options out of the arguments, the other arguments are the server names.
+		ArrayList<String> servers = new ArrayList<>();
+		for (String arg : args)
+		{
+			if (arg.toLowerCase().equals("-binary"))
+				binary = true;
+			else if (arg.toLowerCase().startsWith("-port="))
+			{
+				port1 = Integer.parseInt(arg.substring("-port=".length()));
+				port2 = port1 + 1;
+			}
+			else
+				servers.add(arg);
+		}
+		
+		if (servers.size() < 1) // When no argument, local host is the default server.
 			primaryServer = "localhost";
-		else if (args.length == 1) // With one argument, the IP address passed is the primary server.
-			primaryServer = args[0];
-		else if (args.length > 1) // When there are two arguments, the first one is primary, the second one is secondary.
+		else if (servers.size() == 1) // With one argument, the IP address passed is the primary server.
+			primaryServer = servers.get(0);
+		else if (servers.size() > 1) // When there are two arguments, the first one is primary, the second one is secondary.
 		{
-			primaryServer = args[0];
-			secondServer = args[1];
+			primaryServer = servers.get(0);
+			secondServer = servers.get(1);
 			second = true; // Turn on the flag to true saying a secondary server is connected.
 			
 			// Check if the two servers are different, if so, change the serverOn flag to secondary.
@@ -118,19 +146,35 @@ public class JokeClientAdmin
 				System.out.print("Enter your operation: \n"
 						+ "	'J' for Joke Mode,\n"
 						+ "	'P' for Proverb Mode,\n"
+						+ "	any other letter for a registered category, \n"
 						+ "	'S' to switch server, \n"
+						+ "	'pool' to see the worker pool load, \n"
+						+ "	'sessions' to see the session table, \n"
+						+ "	'log' to see the server log, \n"
+						+ "	'mode' to see the server mode, \n"
+						+ "	'categories' to see the categories, \n"
+						+ "	'cluster' to see the nodes of the cluster, \n"
+						+ "	'stats' to see the metrics of the server, \n"
+						+ "	'health' to see if the server is ready, \n"
+						+ "	'register code label file [deck]' to add a category, \n"
+						+ "	'reload code file' to replace the catalog of a category, \n"
+						+ "	'enable code' or 'disable code' to allow a category or not, \n"
 						+ "	'quit' to end, \n"
 						+ "	'shutdown' to close the server: ");
 				System.out.flush();
 				
-				//Get the input, and make it consistently upper case for easy comparison,
-				entry = in.readLine().toUpperCase();  
+				//Get the input, and make its command word consistently upper case for easy comparison, 
+				// the arguments of 'register' keep their case since they hold a label and a file name.
+				String line = in.readLine().trim();
+				int space = line.indexOf(' ');
+				entry = (space < 0? line.toUpperCase(): line.substring(0, space).toUpperCase());
+				String arguments = (space < 0? "": line.substring(space + 1).trim());
 
 				// Get the server name based on the serverOn flag.
 				String toSend = (serverOn.equals("P")? primaryServer: secondServer);
 				
-				// If the input command is 'j' or 'p', switch the server mode.
-				if(entry.equals("J") || entry.equals("P")) 
+				// If the input command is 'j', 'p' or the letter of another category, switch the server mode.
+				if(entry.length() == 1 && Character.isLetter(entry.charAt(0)) && !entry.equals("S") && arguments.isEmpty()) 
 					changeServerMode(entry, toSend);
 				
 				// If the input command is 's', it means to switch servers.
@@ -166,6 +210,20 @@ public class JokeClientAdmin
 					}
 				}
 				
+				// If the command is 'pool', 'sessions', 'log' or 'mode', show the load of the server's worker pool, 
+				// its session table, its log or its mode, and likewise for the other reports.
+				else if(entry.equals("POOL") || entry.equals("SESSIONS") || entry.equals("LOG") || entry.equals("MODE") 
+						|| entry.equals("CATEGORIES") || entry.equals("CLUSTER") || entry.equals("STATS") || entry.equals("HEALTH"))
+				{
+					changeServerMode(entry, toSend);
+				}
+				
+				// If the command is 'register', 'reload', 'enable' or 'disable', change the categories of the server.
+				else if((entry.equals("REGISTER") || entry.equals("RELOAD") || entry.equals("ENABLE") || entry.equals("DISABLE")) && !arguments.isEmpty())
+				{
+					changeServerMode(entry + " " + (entry.equals("REGISTER") || entry.equals("RELOAD")? arguments: arguments.toUpperCase()), toSend);
+				}
+				
 				// If the command is 'shutdown', close the server.
 				else if(entry.equals("SHUTDOWN"))
 				{
@@ -203,12 +261,31 @@ public class JokeClientAdmin
 		BufferedReader fromServer;
 		PrintStream toServer; 
 		String textFromServer;
-		int port = (serverOn.equals("P")? 5050: 5051); // Get the correct port number according to the serverOn flag.
+		int port = (serverOn.equals("P")? port1: port2); // Get the correct port number according to the serverOn flag.
 
 		try
 		{
 			// Create a socket connecting to the the server and the specified port number passed in.
 			sock = new Socket(serverName, port); 
+			
+			// In binary, send the command in one frame and print the text of the reply frame.
+			if (binary)
+			{
+				DataOutputStream frameOut = new DataOutputStream(new BufferedOutputStream(sock.getOutputStream()));
+				byte[] command = mode.getBytes("UTF-8");
+				frameOut.writeByte(ADMIN_FRAME);
+				frameOut.writeShort(command.length);
+				frameOut.write(command);
+				frameOut.flush();
+				
+				DataInputStream frameIn = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+				byte[] reply = new byte[frameIn.readUnsignedShort()];
+				frameIn.readFully(reply);
+				System.out.println(new String(reply, "UTF-8"));
+				
+				sock.close();
+				return;
+			}
 
 			// Create a bufferedReader object to buffer the input stream got from the socket.
 			fromServer = new BufferedReader(new InputStreamReader(sock.getInputStream()));
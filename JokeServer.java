@@ -26,6 +26,96 @@
 	For this JokeServer, if no argument is passed, it is a primary server.
 	If an argument "secondary" (> java JokeServer secondary) is passed, 
 	then it is a secondary server.
+	
+	The server engine can be chosen with "-engine=" (> java JokeServer -engine=nio).
+	"thread" (the default) starts one Worker thread per connection, "nio" serves all 
+	connections from a few non-blocking event loops, their number is set by "-loops=" 
+	(> java JokeServer secondary -engine=nio -loops=4).
+	
+	With the thread engine, "-exec=" chooses what runs each connection: "thread" (the 
+	default) for a new platform thread, "pool" for a fixed pool of platform threads 
+	sized by "-pool=", or "virtual" for a new virtual thread on JDK 21 and later 
+	(> java JokeServer -exec=pool -pool=64, > java JokeServer -exec=virtual).
+	
+	Every listening port accepts with a backlog set by "-backlog=" (6 by default). 
+	With "-exec=pool", at most "-queue=" accepted connections wait for a pool thread 
+	(256 by default); with the other strategies and the nio engine "-max=" limits the 
+	connections served at once (no limit by default). When the server is full the accept loops stop 
+	accepting until a connection ends, so a burst waits in the kernel backlog.
+	The admin command "pool" shows the load and how often the accept loops waited.
+	
+	A client may keep its connection open: after a first line "JOKE/2" it sends any 
+	number of ID/state pairs and gets one reply per pair. The server closes such a 
+	connection after "-idle=" seconds without a request (30 by default). Clients 
+	which start with their ID still get one reply per connection.
+	
+	A client may ask for a batch by sending "state count" instead of the state. The 
+	reply is the mode, the final state, the number of items, then for each item its 
+	state and the joke/proverb. A batch holds the remaining items of the current deck.
+	
+	Clients may also use the binary protocol on the same ports, the server tells it 
+	apart from the text protocol by the first byte (see the Frames class). A binary 
+	connection stays open for many requests, like a "JOKE/2" connection.
+	
+	The server logs through a background thread, so the Workers never wait for the console. 
+	"-log=" sets the level (error, info or debug, info by default), "-sample=N" prints the 
+	line of one request in N (every request by default), "-logbuffer=" sets the number of 
+	events which may wait (8192 by default, more are dropped and counted), and "-accesslog=" 
+	writes a binary record of every request to a file (see the Log class).
+	The admin command "log" shows the settings and the number of dropped events.
+	(> java JokeServer -engine=nio -sample=100 -accesslog=access.log)
+	
+	Clients which send a version 2 state get decks of "-deck=" items, for every mode 
+	(> java JokeServer -deck=8) or for each one (> java JokeServer -deck=j:8,p:4), 4 by 
+	default and at most 64. Clients which send an 8-bit state always get decks of 4 items.
+	
+	The admin commands "J" and "P" switch the mode, any other text leaves it unchanged. 
+	A request reads the mode once and is served wholly in it. The admin command "mode" 
+	shows the current mode and how many times it has changed.
+	
+	Jokes and proverbs are two categories, the admin may register more while the server runs, 
+	each with its own catalog, deck length and deck in every session: "register R Riddle 
+	riddles.txt 8" adds the category R (a CatalogBuilder ".cat" file, or a text file with one 
+	entry per line), then "R" switches the mode to it. "disable R" and "enable R" choose 
+	whether the mode may be switched to it, "categories" lists them. A session has room for 
+	"-categories=" categories (8 by default). Clients with an 8-bit state have no bits for 
+	the added categories, so they get an item of a new deck on each request in those modes.
+	"reload J jokes2.cat" replaces the catalog of a category, built-in or not, while the 
+	requests go on: the new catalog is loaded, then swapped in at once, and the requests 
+	already started finish with the old one. Each client then starts a new cycle on its next 
+	request. Build a new ".cat" file under a new name, the old one stays mapped.
+	
+	With "-stateless", the server keeps no session for the clients with a version 2 state: 
+	the decks travel in their state with an HMAC which the clients can not forge (see Token). 
+	Servers started with the same "-secret=" can then answer each other's clients 
+	(> java JokeServer -stateless -secret=s3cret). Clients with an 8-bit state still have sessions.
+	
+	"-port=" and "-adminport=" move the client port and the admin port (4545 and 5050 by default, 
+	the secondary server uses the next ones). Several servers then form a cluster with "-cluster=", 
+	the peer addresses of all the nodes, and "-node=", the peer address of this one. Each client is 
+	owned by one node, the others forward the session part of its requests to it, and its decks are 
+	copied to a backup node which takes over while the owner is down (see Cluster). On one host:
+		> java JokeServer -port=6001 -adminport=6101 -cluster=localhost:7001,localhost:7002 -node=localhost:7001
+		> java JokeServer -port=6002 -adminport=6102 -cluster=localhost:7001,localhost:7002 -node=localhost:7002
+	"-peertimeout=" sets the milliseconds to wait for another node (500 by default). The admin 
+	command "cluster" shows the nodes and the traffic between them.
+	
+	With "-persist=", the sessions outlive the server: each new deck, and each session evicted 
+	or expired, is appended to a change log in that directory, written and forced to disk 
+	every "-fsync=" ms (1000 by default), and all the sessions are written to a snapshot every 
+	"-snapshot=" seconds (300 by default) and on "shutdown". At startup the server reads the 
+	snapshot and the logs written since, so its clients go on with their decks, after a crash 
+	as well (see SessionLog). The admin command "sessions" shows what was logged and 
+	recovered. Each node of a cluster needs its own directory. The decks of the categories 
+	registered by the admin are dropped at startup, since those categories are only registered 
+	again later, and maybe in another order.
+		> java JokeServer -persist=sessions -fsync=200
+	
+	The admin command "stats" returns a snapshot of the metrics in one line of name=value pairs: 
+	the requests of each kind, the request and accept rates since the last snapshot, the open 
+	connections, the running Workers, the sessions, the errors, and the percentiles of the time 
+	from a request read to its reply written (see Metrics). "health" returns "READY", or 
+	"NOT READY" and the reasons, and is cheap enough to be asked every second.
 
 5. List of files needed for running the program.
 
@@ -35,13 +125,20 @@
 
 6. Notes:
 
-	a. There are 10 jokes and 10 proverbs stored in this server. 
+	a. There are 10 jokes and 10 proverbs stored in this server. Larger catalogs are built 
+	with CatalogBuilder out of a text file (one entry per line) or a CSV file, then mapped 
+	into memory at startup with "-jokes=" and "-proverbs=":
+		> java CatalogBuilder jokes.txt jokes.cat
+		> java JokeServer -jokes=jokes.cat -proverbs=proverbs.cat
 	b. When a client gets connected, its UUID then is stored in this server along with 4 randomly 
-	selected jokes and 4 random proverbs. 
+	selected jokes and 4 random proverbs, in one fixed-size slot of the off-heap session table. 
+	"-sessions=" sets the maximum number of sessions (65536 by default), "-ttl=" the seconds 
+	a session may stay idle (3600 by default). A client whose session was dropped starts a new cycle.
 	c. Depending on the mode, jokes and proverbs are sent to the client one at a time, when all 4 
 	jokes/proverbs have been sent, randomly select new 4 jokes/proverbs to be stored with the unique UUID.
-	d. The server communicates with clients with state which is a 8-bits integer. The server reads, interprets 
-	and updates the state integer each time the clients send, and then send it back to the clients.
+	d. The server communicates with clients with state which is a 8-bits integer, or a longer version 2 state 
+	(see the State class) which lets a deck hold more than 4 items. The server reads, interprets and updates 
+	the state each time the clients send, and then send it back to the clients in the format they used.
 	e. Each time when a request is processed, the server shows which joke/proverb has been sent.
 	f. When the adminClient gets connected, the server would show the connection and the operations (if any).
 
@@ -51,115 +148,366 @@
 
 import java.io.*; // Import the java input/output package  
 import java.net.*; // Import the java networking package
+import java.nio.ByteBuffer; // Byte buffers used by the non-blocking engine.
+import java.nio.channels.*; // Selector, ServerSocketChannel and SocketChannel for the non-blocking engine, FileChannel for the catalogs.
+import java.nio.charset.Charset; // The UTF-8 charset of the catalogs and the replies.
+import java.nio.MappedByteBuffer; // The snapshot of the sessions.
+import java.nio.file.DirectoryStream; // The session logs of a directory.
+import java.nio.file.Files; // Read the text files of the categories registered by the admin.
+import java.nio.file.Path; // The files of the sessions.
+import java.nio.file.Paths; // Open the catalog files.
+import java.nio.file.StandardCopyOption; // Put a new snapshot of the sessions in place at once.
+import java.nio.file.StandardOpenOption; // Open the catalog files for reading.
+import java.util.TreeMap; // The session logs, by generation.
+import java.util.ArrayDeque; // The replies waiting to be written on a connection of the non-blocking engine.
+import java.util.Iterator; // Iterate over the selected keys of a selector.
+import java.util.concurrent.ConcurrentLinkedQueue; // Hand accepted channels over to the event loops.
+import java.util.concurrent.ExecutorService; // Run the Worker and AdminWorker tasks on a pool or on virtual threads.
+import java.util.concurrent.Executors; // Create the thread pools.
+import java.util.concurrent.ArrayBlockingQueue; // The bounded queue of the platform pool.
+import java.util.concurrent.CopyOnWriteArrayList; // The list of listeners, read by the admin reports.
+import java.util.concurrent.Semaphore; // Admission control, the accept loops wait when the server is full.
+import java.util.concurrent.ThreadPoolExecutor; // The bounded platform pool.
+import java.util.concurrent.TimeUnit; // Time unit of the pool keep-alive.
+import java.util.concurrent.atomic.AtomicInteger; // The client ports listening, read by the health probe.
+import java.util.concurrent.atomic.AtomicLong; // Counters read by the admin reports.
+import java.util.concurrent.atomic.LongAdder; // The counters of the metrics, added to by many threads.
+import java.util.concurrent.atomic.AtomicReference; // Holds the server mode.
+import java.util.concurrent.atomic.AtomicLongArray; // The turns of the slots of the log ring.
+import java.util.concurrent.locks.LockSupport; // The log thread sleeps briefly when the ring is empty.
+import java.util.function.Function; // Creates the task which serves an accepted socket.
 
-// Import data structure ArrayList and HashMap to store data.
+// Import data structure ArrayList to store data.
 import java.util.ArrayList; 
-import java.util.HashMap; 
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale; // The numbers of the metrics are written the same way everywhere.
 
 // Import random package to enable the random selections of jokes/proverbs.
-import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.UUID; // Print the client's UUID kept as two longs.
+
+// The HMAC of the tokens of the stateless mode.
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
 
 public class JokeServer
 {	
-	// Store the id of each connected client and the four random selected jokes/proverbs.
-	public static HashMap <String, ArrayList<Integer> > jokesClients; 
-	public static HashMap <String, ArrayList<Integer> > proverbsClients;
+	// Store the id of each connected client with its four random selected jokes and four random selected proverbs.
+	public static SessionTable sessions;
+	
+	// Maximum number of sessions, and seconds a session may stay idle before it is dropped.
+	public static int maxSessions = 1 << 16;
+	public static int sessionTTL = 3600;
+	// Number of categories each session has room for, the built-in two and those the admin registers.
+	public static int maxCategories = 8;
+	// "-stateless" keeps the decks of the version 2 clients in their state, signed with "-secret=" (see Token).
+	public static boolean stateless = false;
+	public static String secret;
+	// The directory given by "-persist=" keeps the sessions across restarts, the change log is forced to disk 
+	// every "-fsync=" ms and the sessions are written to a snapshot every "-snapshot=" seconds (see SessionLog).
+	public static String persist;
+	public static int fsync = 1000;
+	public static int snapshot = 300;
+	// The peer addresses of the nodes of a cluster given by "-cluster=", and the one of this node by "-node=" (see Cluster).
+	public static String cluster;
+	public static String node;
 	
-	// 10 jokes and 10 proverbs stored in each hashMap.
-	public static HashMap <Integer, String> jokes;
-	public static HashMap <Integer, String> proverbs;
+	// The catalog files given by "-jokes=" and "-proverbs=", null for the built-in entries.
+	public static String jokesFile = null;
+	public static String proverbsFile = null;
 	
-	// Server mode, J for Joke, P for Proverb, Joke mode is the default setting.
-	public static String mode = "J";
+	// The server mode, J for Joke, P for Proverb, is kept by the ModeRegistry, Joke mode is the default setting.
+	
+	// Server engine, "thread" starts one Worker thread per connection, "nio" uses the non-blocking event loops.
+	public static String engine = "thread";
+	
+	// Number of event-loop threads used by the non-blocking engine.
+	public static int loops = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+	
+	// How Worker and AdminWorker tasks run: "thread" for a new platform thread each, "pool" for a fixed pool 
+	// of platform threads, "virtual" for a new virtual thread each (JDK 21 and later).
+	public static String exec = "thread";
+	
+	// Number of platform threads in the pool when exec is "pool".
+	public static int poolSize = 4 * Runtime.getRuntime().availableProcessors();
+	
+	// Number of accepted connections which may wait for a pool thread when exec is "pool".
+	public static int queueDepth = 256;
+	
+	// Maximum connections served at once when exec is "thread" or "virtual", 0 for no limit.
+	public static int maxConnections = 0;
+	
+	// Maximum connections the kernel keeps waiting to be accepted on each listening port.
+	public static int backlog = 6;
+	
+	// The first line sent by a client which opts in to version 2 of the protocol. After it, the client 
+	// sends any number of ID/state pairs over the same connection and gets one reply per pair.
+	// Clients which send their ID as the first line get one reply, then the connection is closed as before.
+	public static final String HELLO_V2 = "JOKE/2";
+	
+	// Seconds a version 2 connection may stay idle before the server closes it.
+	public static int idleSeconds = 30;
+	
+	// The client port and the admin port, set by "-port=" and "-adminport=". The secondary server 
+	// listens at the next port of each, so several servers may run on one host.
+	public static int port = 4545;
+	public static int adminPort = 5050;
 	
 	public static void main(String args[]) throws IOException
 	{
-		int q_len = 6; // Maximum requests the server can accept simultaneously. 
-		int port = 4545; // Primary and default port.
-		Socket sock; // Create a local socket. 
+		boolean secondary = false; // A boolean flag to check if the secondary server should be started.
+		
+		// Check the arguments. "secondary" starts the secondary server, "-engine=" and "-loops=" choose the engine.
+		for (int i = 0; i < args.length; i++)
+		{
+			String arg = args[i].toLowerCase(); // Make the argument consistently lower case.
+			
+			if (arg.equals("secondary"))
+			{
+				secondary = true;
+			}
+			else if (arg.startsWith("-engine="))
+			{
+				engine = arg.substring("-engine=".length());
+			}
+			else if (arg.startsWith("-loops="))
+			{
+				loops = Math.max(1, Integer.parseInt(arg.substring("-loops=".length())));
+			}
+			else if (arg.startsWith("-exec="))
+			{
+				exec = arg.substring("-exec=".length());
+			}
+			else if (arg.startsWith("-pool="))
+			{
+				poolSize = Math.max(1, Integer.parseInt(arg.substring("-pool=".length())));
+			}
+			else if (arg.startsWith("-queue="))
+			{
+				queueDepth = Math.max(1, Integer.parseInt(arg.substring("-queue=".length())));
+			}
+			else if (arg.startsWith("-max="))
+			{
+				maxConnections = Math.max(0, Integer.parseInt(arg.substring("-max=".length())));
+			}
+			else if (arg.startsWith("-backlog="))
+			{
+				backlog = Math.max(1, Integer.parseInt(arg.substring("-backlog=".length())));
+			}
+			else if (arg.startsWith("-jokes="))
+			{
+				jokesFile = args[i].substring("-jokes=".length()); // Keep the case of the file name.
+			}
+			else if (arg.startsWith("-proverbs="))
+			{
+				proverbsFile = args[i].substring("-proverbs=".length());
+			}
+			else if (arg.startsWith("-sessions="))
+			{
+				maxSessions = Math.max(1, Integer.parseInt(arg.substring("-sessions=".length())));
+			}
+			else if (arg.startsWith("-ttl="))
+			{
+				sessionTTL = Math.max(1, Integer.parseInt(arg.substring("-ttl=".length())));
+			}
+			else if (arg.startsWith("-categories="))
+			{
+				maxCategories = Math.max(Category.all.size(), Integer.parseInt(arg.substring("-categories=".length())));
+			}
+			else if (arg.startsWith("-port="))
+			{
+				port = Integer.parseInt(arg.substring("-port=".length()));
+			}
+			else if (arg.startsWith("-adminport="))
+			{
+				adminPort = Integer.parseInt(arg.substring("-adminport=".length()));
+			}
+			else if (arg.startsWith("-cluster="))
+			{
+				cluster = args[i].substring("-cluster=".length());
+			}
+			else if (arg.startsWith("-node="))
+			{
+				node = args[i].substring("-node=".length());
+			}
+			else if (arg.startsWith("-peertimeout="))
+			{
+				Cluster.timeout = Math.max(1, Integer.parseInt(arg.substring("-peertimeout=".length())));
+			}
+			else if (arg.equals("-stateless"))
+			{
+				stateless = true;
+			}
+			else if (arg.startsWith("-secret="))
+			{
+				secret = args[i].substring("-secret=".length()); // Keep the case of the secret.
+			}
+			else if (arg.startsWith("-persist="))
+			{
+				persist = args[i].substring("-persist=".length()); // Keep the case of the directory name.
+			}
+			else if (arg.startsWith("-fsync="))
+			{
+				fsync = Math.max(1, Integer.parseInt(arg.substring("-fsync=".length())));
+			}
+			else if (arg.startsWith("-snapshot="))
+			{
+				snapshot = Math.max(1, Integer.parseInt(arg.substring("-snapshot=".length())));
+			}
+			else if (arg.startsWith("-idle="))
+			{
+				idleSeconds = Math.max(1, Integer.parseInt(arg.substring("-idle=".length())));
+			}
+			else if (arg.startsWith("-deck="))
+			{
+				// Either one length for every mode (-deck=8), or a length for each mode (-deck=j:8,p:4).
+				for (String part : arg.substring("-deck=".length()).split(","))
+				{
+					int colon = part.indexOf(':');
+					int length = Integer.parseInt(part.substring(colon + 1));
+					for (Category m : Category.all)
+					{
+						if (colon < 0 || m.code.equalsIgnoreCase(part.substring(0, colon)))
+							m.deck = length;
+					}
+				}
+			}
+			else if (arg.startsWith("-log="))
+			{
+				String level = arg.substring("-log=".length());
+				Log.level = (level.equals("error")? Log.ERROR: level.equals("debug")? Log.DEBUG: Log.INFO);
+			}
+			else if (arg.startsWith("-sample="))
+			{
+				Log.sample = Math.max(1, Integer.parseInt(arg.substring("-sample=".length())));
+			}
+			else if (arg.startsWith("-logbuffer="))
+			{
+				Log.capacity = Math.max(2, Integer.parseInt(arg.substring("-logbuffer=".length())));
+			}
+			else if (arg.startsWith("-accesslog="))
+			{
+				Log.accessFile = args[i].substring("-accesslog=".length());
+			}
+			else
+			{
+				System.out.println("Unknown argument " + args[i] + " ignored.");
+			}
+		}
 
-		// Initialize these two hash maps to be ready to store client's information.
-		jokesClients = new HashMap<>();
-		proverbsClients = new HashMap<>(); 
+		// Start the log thread, the requests and the admin commands are logged through it.
+		Log.init();
+		
+		// Initialize the session table to be ready to store client's information.
+		sessions = new SessionTable(maxSessions, sessionTTL, maxCategories);
 		
-		// Get jokes and proverbs ready for use.
+		// Get the sessions of the last run back, before any request may change them.
+		if (persist != null)
+			SessionLog.open(sessions, persist, fsync, snapshot);
+		
+		// Get jokes and proverbs ready for use, then replace them by the catalog files if any.
 		getPoolReady();
+		if (jokesFile != null)
+			Category.JOKE.catalog = MappedCatalog.open(jokesFile);
+		if (proverbsFile != null)
+			Category.PROVERB.catalog = MappedCatalog.open(proverbsFile);
+		
+		// A deck never holds more items than its catalog, so that its items never repeat.
+		for (Category m : Category.all)
+		{
+			int length = Math.max(1, Math.min(m.deck, Math.min(State.MAX_DECK, m.catalog().size())));
+			if (length != m.deck)
+				System.out.println("A " + m.label + " deck holds " + length + " items, not " + m.deck + ".");
+			m.deck = length;
+		}
+		
+		// Sign the tokens of the stateless mode.
+		if (stateless)
+			Token.init(secret);
+		
+		// Get the execution strategy of the Worker and AdminWorker tasks ready.
+		Launcher.init();
+		
+		// Join the cluster, and start serving the requests of the other nodes.
+		if (cluster != null)
+			Cluster.init(cluster, node);
 		
 		// Start a new thread to wait for the Admin Client's connection.
 		AdminThread AT = new AdminThread(); 
 	    Thread t = new Thread(AT);
 	    t.start(); 
 	    
-		/* Create a server socket object which is bounded to the specified port number, 
-		and has a capacity of 6 simultaneous requests. 
-		*/	
-		ServerSocket primarysock = new ServerSocket(port, q_len); 
-
 		// Print out the message that the server is working and ports at which are listening for connections.
-		System.out.println("Wenwen Zhang's Joke Server staring up, listening at Port 4545.");
-		System.out.println("If connected as a secondary server, using Port 4546.\n");
+		System.out.println("Wenwen Zhang's Joke Server staring up, listening at Port " + port + ".");
+		System.out.println("If connected as a secondary server, using Port " + (port + 1) + ".");
+		if (engine.equals("nio"))
+			System.out.println("Using the nio engine, serving the connections from " + loops + (loops == 1? " event loop": " event loops") + ".\n");
+		else
+			System.out.println("Using the " + engine + " engine, running tasks on " + Launcher.describe() + ".\n");
 		
-		// Check the arguments. If "secondary" is presented, start a new thread to handle the clients. 
-		if(args.length > 0)
-		{
-			if (args[0].toLowerCase().equals("secondary")) // Make the argument consistently lower case.
-			{				
-				// New thread for regular clients.
-				SecondWorker second = new SecondWorker(); 
-			    Thread t3 = new Thread(second);
-			    t3.start();
-			    
-			    // New thread for admin clients.
-			    AdminThread AT2 = new AdminThread(5051); 
-			    Thread t2 = new Thread(AT2);
-			    t2.start(); 		    		    
-			}
+		// If "secondary" is presented, start a new thread to handle the clients. 
+		if (secondary)
+		{				
+			// New thread for regular clients.
+			SecondWorker second = new SecondWorker(); 
+		    Thread t3 = new Thread(second);
+		    t3.start();
+		    
+		    // New thread for admin clients.
+		    AdminThread AT2 = new AdminThread(adminPort + 1); 
+		    Thread t2 = new Thread(AT2);
+		    t2.start(); 		    		    
 		}
-
-		while (true) // The server runs forever, waiting for connections.
+		
+		// With the non-blocking engine, a small fixed set of event loops serves every connection.
+		if (engine.equals("nio"))
 		{
-			/* Server socket listens for connection requests made from clients, 
-			and if any, accepts it and assigns to the local socket.
-			*/
-			sock = primarysock.accept(); 
-			
-			// Create a new thread with this connected local socket and start running this thread.
-			new Worker(sock).start(); 
+			new NioServer(port, backlog).run();
+			return;
 		}
+		
+		// The server runs forever, waiting for connections and giving each one to a new Worker.
+		new Listener(port, Worker::new, true).run();
 	}
 	
-	// Initialize the joke maps and proverb maps, put 10 entries into each one.
+	// Initialize the joke catalog and proverb catalog, put 10 entries into each one.
 	public static void getPoolReady()
 	{
-		jokes = new HashMap<>();
-		proverbs = new HashMap<>();
-		
-		jokes.put(0, "What's orange and sounds like a parrot? A carrot.");
-		jokes.put(1, "What do you call it when Batman skips church? Christian Bale.");
-		jokes.put(2, "Two fish are sitting in a tank. One looks over at the other and says: \"Hey, do you know how to drive this thing?\"");
-		jokes.put(3, "I told my doctor that I broke my arm in two places. He told me to stop going to those places.");
-		jokes.put(4, "I told my girlfriend she drew her eyebrows too high. She seemed surprised.");
-		jokes.put(5, "Two cows are sitting in a field, and one says to the other, \"so, how about that mad cow disease? Scary stuff, right?\" To which to other replies, \"terrifying. But what do I care? I’m a helicopter.\"");
-		jokes.put(6, "What did the 0 say to the 8? Nice belt!");
-		jokes.put(7, "Why is six afraid of seven? Because seven ate nine.");
-		jokes.put(8, "Two muffins are in an oven. One muffin says \"gosh, it’s hot in here\". The other muffin screams \"AAAH!! A talking muffin!\"");
-		jokes.put(9, "What do you call bears with no ears? B");
-		
-		proverbs.put(0, "The early bird catches the worm.");
-		proverbs.put(1, "Actions speak louder than words.");
-		proverbs.put(2, "When in Rome, do as the Romans.");
-		proverbs.put(3, "The squeaky wheel gets the grease.");
-		proverbs.put(4, "When the going gets tough, the tough get going.");
-		proverbs.put(5, "Fortune favors the bold.");
-		proverbs.put(6, "Hope for the best, but prepare for the worst.");
-		proverbs.put(7, "Birds of a feather flock together.");
-		proverbs.put(8, "Better late than never.");
-		proverbs.put(9, "There's no such thing as a free lunch.");
-	}
-}
-
-/* Inherits Thread class and override the run() method so that the server can be multi-threaded.*/
-class Worker extends Thread 
+		String[] jokes = new String[10];
+		String[] proverbs = new String[10];
+		
+		jokes[0] = "What's orange and sounds like a parrot? A carrot.";
+		jokes[1] = "What do you call it when Batman skips church? Christian Bale.";
+		jokes[2] = "Two fish are sitting in a tank. One looks over at the other and says: \"Hey, do you know how to drive this thing?\"";
+		jokes[3] = "I told my doctor that I broke my arm in two places. He told me to stop going to those places.";
+		jokes[4] = "I told my girlfriend she drew her eyebrows too high. She seemed surprised.";
+		jokes[5] = "Two cows are sitting in a field, and one says to the other, \"so, how about that mad cow disease? Scary stuff, right?\" To which to other replies, \"terrifying. But what do I care? I’m a helicopter.\"";
+		jokes[6] = "What did the 0 say to the 8? Nice belt!";
+		jokes[7] = "Why is six afraid of seven? Because seven ate nine.";
+		jokes[8] = "Two muffins are in an oven. One muffin says \"gosh, it’s hot in here\". The other muffin screams \"AAAH!! A talking muffin!\"";
+		jokes[9] = "What do you call bears with no ears? B";
+		
+		proverbs[0] = "The early bird catches the worm.";
+		proverbs[1] = "Actions speak louder than words.";
+		proverbs[2] = "When in Rome, do as the Romans.";
+		proverbs[3] = "The squeaky wheel gets the grease.";
+		proverbs[4] = "When the going gets tough, the tough get going.";
+		proverbs[5] = "Fortune favors the bold.";
+		proverbs[6] = "Hope for the best, but prepare for the worst.";
+		proverbs[7] = "Birds of a feather flock together.";
+		proverbs[8] = "Better late than never.";
+		proverbs[9] = "There's no such thing as a free lunch.";
+		
+		Category.JOKE.catalog = new ArrayCatalog(jokes);
+		Category.PROVERB.catalog = new ArrayCatalog(proverbs);
+	}
+}
+
+/* Implements Runnable so that the server can be multi-threaded, the Launcher decides which thread runs it.*/
+class Worker implements Runnable 
 {
 	Socket sock; // A local socket for connection.
 	Worker (Socket s) {sock = s;} // Assign s to sock when this constructor is called.
@@ -168,325 +516,3932 @@ class Worker extends Thread
 	public static final int PMask = 0x0F; // Used to get the bits for client's proverb state. 
 
 	public void run()
+	{
+		Metrics.workers.increment();
+		try
+		{
+			serve();
+		}
+		finally
+		{
+			// Whatever ended the connection, even an unexpected exception, the socket is closed here, 
+			// and the admission permit is given back by the Launcher once this returns.
+			try {sock.close();}
+			catch (IOException ioe) {Log.error(ioe.toString());}
+			Metrics.workers.decrement();
+			Metrics.connections.decrement();
+		}
+	}
+	
+	// Serve the requests of the connection until it ends, the socket is closed by run().
+	void serve()
 	{
 		PrintStream out = null; 
 		BufferedReader in = null; 
 
 		try
 		{
+			// Peek at the first byte, a binary client starts with the frame marker, a text client with its ID.
+			InputStream raw = new BufferedInputStream(sock.getInputStream());
+			raw.mark(1);
+			int first = raw.read();
+			raw.reset();
+			
+			// Replies are written to the channel of the socket, or to its stream when it has none.
+			WritableByteChannel ch = (sock.getChannel() != null? sock.getChannel(): Channels.newChannel(sock.getOutputStream()));
+			Reply reply = new Reply(); // Reused for every request of this connection.
+			
+			if (first == Frames.REQUEST)
+			{
+				serveBinary(raw, ch, reply);
+				return;
+			}
+			
 			// Get the client's input, in this case, including client's id and state.
-			in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
+			in = new BufferedReader(new InputStreamReader(raw));
 			
-			// Used to write the outputs that will be displayed on the client's side.
-			out = new PrintStream(sock.getOutputStream());
+			// Used to write the replies to batch requests, the single requests are written to the channel.
+			out = new PrintStream(new BufferedOutputStream(sock.getOutputStream()), false, "UTF-8");
 
 			try
 			{
 				// Get the client's unique id which will used as a key to associate the jokes/proverbs array.
 				String ID = in.readLine(); 
 				
-				// Get the client's current state and convert it to an integer so that it can be interpreted and updated.
-				int state = Integer.parseInt(in.readLine());
-
-				// Call this method to process the client's state and give corrects things back.
-				giveSomething(ID, state, out);
+				// A version 2 client keeps the connection open, so give it an idle timeout and serve 
+				// its requests until it closes the connection.
+				boolean keepAlive = JokeServer.HELLO_V2.equals(ID);
+				if (keepAlive)
+				{
+					sock.setSoTimeout(JokeServer.idleSeconds * 1000);
+					ID = in.readLine();
+				}
+				
+				while (ID != null)
+				{
+					// Get the client's current state, followed by the batch size if the client asks for many items.
+					String stateLine = in.readLine();
+					if (stateLine == null) // The client closed the connection after its ID, there is nothing to answer.
+						break;
+					int space = stateLine.indexOf(' ');
+					long start = System.nanoTime(); // The request has fully arrived.
+					
+					if (space < 0)
+					{
+						// Call this method to process the client's state and give corrects things back.
+						giveSomething(ID, stateLine.trim(), reply, ch);
+						Metrics.request(Metrics.text, start);
+					}
+					else
+					{
+						// Give back up to the asked number of items of the client's current deck.
+						giveBatch(ID, stateLine.substring(0, space), 
+								Integer.parseInt(stateLine.substring(space + 1).trim()), out);
+						out.flush();
+						Metrics.request(Metrics.batches, start);
+					}
+					
+					ID = (keepAlive? in.readLine(): null); // Wait for the next request of a version 2 client.
+				}
+			}
+			
+			// A version 2 client which stays idle too long is simply disconnected.
+			catch(SocketTimeoutException x)
+			{
+				Log.debug("Closed an idle connection.");
 			}
 
 			/* If anything goes wrong, keep the program running by catch the exception 
-			and print out the error message.
+			and print out the error message. A request with a bad state is an error too.
 			*/
-			catch(IOException x) 
+			catch(IOException | IllegalArgumentException x) 
 			{
-				System.out.println("Server read error");
-				x.printStackTrace();
+				Log.error("Server read error", x);
 			}
-
-			sock.close(); // Close this local socket.
 		}
 		catch(IOException ioe)
 		{
-			System.out.println(ioe);
+			Log.error(ioe.toString());
 		}
 	}
 
-	public static void giveSomething(String id, int n, PrintStream out) throws IOException
+	// Serve the frames of a binary client until it closes the connection, or stays idle too long.
+	// Each request frame holds the 16 bytes of the client's UUID and the 1-byte state.
+	void serveBinary(InputStream raw, WritableByteChannel ch, Reply reply) throws IOException
 	{
-			
-		int update; // The updated integer which is used to get the joke/provert that will be send to client.
-		
-		int stateOld = readState(n); // Call the readState() method to get the client's state, it would be 0 to 4.
+		sock.setSoTimeout(JokeServer.idleSeconds * 1000);
+		DataInputStream in = new DataInputStream(raw);
+		byte[] body = new byte[Frames.MAX_BODY];
 		
-		if (JokeServer.mode.equals("P")) // Check if the server is on Proverb mode
+		try
 		{
-			// if the state is 1, 2, or 3, it means that the client is not first time connected, and has an associated 
-			// array list of 4 proverbs which has had several items being sent before.
-			if(stateOld > 0 && stateOld < 4)
-			{
-				update = stateOld; // Get the current proverb state of the client
-			}
-			
-			// if the state is not 1, 2, or 3, it means either the client is first time connected, or the associated 
-			// 4 proverbs had all been sent to the client, a new cycle need to be started.
-			else
+			int marker;
+			while ((marker = in.read()) >= 0)
 			{
-				// Call the randList() method to generate an array with 4 random selected proverb's indexes in range [0, 9].
-				JokeServer.proverbsClients.put(id, randList()); 
-				update = 0; // Start a new cycle, grab the first item in the id-associated array.
+				int length = in.readUnsignedShort();
+				if (marker != Frames.REQUEST || length < Frames.UUID_BODY || length > body.length)
+					throw new IOException("Bad request frame");
+				in.readFully(body, 0, length);
+				long start = System.nanoTime();
+				
+				// Same processing as the text protocol, then write the reply frame at once.
+				answerFrame(body, length, reply);
+				Reply.write(ch, reply.frame());
+				Metrics.request(Metrics.binary, start);
 			}
-			
-			// Print out on the console which proverb will be sent to the client in this request.			
-			System.out.println("Sending Proverb #" + JokeServer.proverbsClients.get(id).get(update) + " to Clent " +id + ".\n");
-			
 		}
-		else // The server is on Joke mode
+		
+		// A binary client which stays idle too long is simply disconnected.
+		catch (SocketTimeoutException x)
 		{
-			// if the state is 1, 2, or 3, it means that the client is not first time connected, and has an associated 
-			// array list of 4 jokes which has had several items being sent before.
-			if(stateOld > 0 && stateOld < 4)
-			{
-				update = stateOld; // Get the current joke state of the client
-			}
-			
-			// if the state is not 1, 2, or 3, it means either the client is first time connected, or the associated 
-			// 4 proverbs had all been sent to the client, a new cycle need to be started.
-			else
-			{
-				// Call the randList() method to generate an array with 4 random selected proverb's indexes in range [0, 9].
-				JokeServer.jokesClients.put(id, randList());
-				update = 0; // Start a new cycle, grab the first item in the id-associated array.
-			}
-			
-			// Print out on the console which proverb will be sent to the client in this request.
-			System.out.println("Sending Joke #" + JokeServer.jokesClients.get(id).get(update) + " to Clent " +id + ".\n");
-			
+			Log.debug("Closed an idle connection.");
+		}
+		
+		// A frame with a bad state ends the connection.
+		catch (IllegalArgumentException x)
+		{
+			Log.error("Server read error " + x);
 		}
+	}
+
+	public static void giveSomething(String id, String state, Reply reply, WritableByteChannel ch) throws IOException
+	{
+		answer(SessionTable.msb(id), SessionTable.lsb(id), state, reply); // Process the client's state.
 		
 		// Write the current server mode, the updated state, 
-		// and the joke/proverb which is in correct order to the client in three lines.
-		out.println(JokeServer.mode); 
-		out.println(updateState(n, stateOld)); 
-		out.println(getOutputs(id, update));
+		// and the joke/proverb which is in correct order to the client in three lines, in one write.
+		Reply.write(ch, reply.lines());
 	}
 	
-	// This method is to generate an array containing 4 integers in range [0, 9]
-	public static ArrayList<Integer> randList()
+	// Write the reply to a batch request: the mode, the final state and the number of items, 
+	// followed by the state after each item and the item itself.
+	public static void giveBatch(String id, String state, int max, PrintStream out) throws IOException
 	{
-		Random rand = new Random();
-		ArrayList<Integer> arr = new ArrayList<Integer> ();
-		int i = 0;
-		while(i < 4)
+		String[] reply = answerBatch(id, state, max);
+		for (int i = 0; i < reply.length; i++)
 		{
-			int n = rand.nextInt(10);
-			if (! arr.contains(n)) // Add to the array only when the random integer is not in the array, 
-			{
-				arr.add(n);
-				i++;
-			}
-		}	
-		
-		return arr;
+			out.println(reply[i]);
+		}
 	}
 	
-	// This method is to get the corresponding Joke/Proverb state of the client.
-	public static Integer readState(int n)
+	// This method is to process a batch request, it gives the remaining items of the client's current deck, 
+	// at most max of them, in one reply. A client at the end of its deck gets the items of a new deck.
+	// The mode is read once, so every item of the batch comes from the same catalog.
+	public static String[] answerBatch(String id, String state, int max)
 	{
-		int ret = 0;
-		
-		// Mask the state to get the corresponding four bits. 
-		int temp = (JokeServer.mode.equals("P")? (n ^ PMask):(n ^ JMask)); 
+		ArrayList<String> items = new ArrayList<>(); // The state after each item, and the item.
+		Category mode = ModeRegistry.get().mode;
+		long msb = SessionTable.msb(id);
+		long lsb = SessionTable.lsb(id);
+		Reply item = new Reply();
 		
-		// Offset is used to pointed to the correct bits in different mode.
-		
-		int offset = (JokeServer.mode.equals("P")? 0:4);
+		for (int i = 0; i < max; i++)
+		{
+			// Same processing as a single request, each item moves the state one step further.
+			answer(msb, lsb, state, mode, item);
+			state = item.stateText();
+			items.add(state);
+			items.add(item.text());
+			
+			// Stop at the end of the deck, the next item would start a new one.
+			if (item.sent >= item.length)
+				break;
+		}
 		
-		// Count how many bits are 1, the result is exactly how many jokes or proverbs had been sent before.
-		for(int i = 0 + offset; i < 4 + offset; i++)
+		String[] reply = new String[3 + items.size()];
+		reply[0] = mode.code;
+		reply[1] = state;
+		reply[2] = String.valueOf(items.size() / 2);
+		for (int i = 0; i < items.size(); i++)
 		{
-			ret += (temp >> i) & 1;
+			reply[3 + i] = items.get(i);
 		}
-			
-		return ret;
-				
+		return reply;
 	}
 	
-	// This method is to update the client's state.
-	public static Integer updateState(int n, int s)
+	// This method is to process the client's state, and return the mode, the updated state and the joke/proverb.
+	// It is shared by the Worker threads and the non-blocking event loops.
+	public static String[] answer(String id, int n)
 	{
-		int ret = 0;
-		
-		// Offset is used to pointed to the correct bits in different mode
-		int offset = (JokeServer.mode.equals("P")? 0:4);
-		
-		// If the state is 1, 2, or 3, turn on the next bit.
-		if (s > 0 && s < 4) 
+		return answer(SessionTable.msb(id), SessionTable.lsb(id), n);
+	}
+	
+	// The same, with the client's UUID as two longs, the way the session table and the binary protocol keep it.
+	public static String[] answer(long msb, long lsb, int n)
+	{
+		Reply reply = new Reply();
+		answer(msb, lsb, n, ModeRegistry.get().mode, reply);
+		return new String[] {reply.mode.code, reply.stateText(), reply.text()};
+	}
+	
+	// The same, with the state line of the text protocol: an 8-bit state, or a version 2 state (see State).
+	// The answer is left in the reply, and the joke/proverb stays in the catalog until it is written.
+	// The server mode is read once here, and the whole request is served in that mode.
+	public static void answer(long msb, long lsb, String state, Reply reply)
+	{
+		answer(msb, lsb, state, ModeRegistry.get().mode, reply);
+	}
+	
+	// The same, in the given mode.
+	public static void answer(long msb, long lsb, String state, Category mode, Reply reply)
+	{
+		if (state.length() > 0 && state.charAt(0) == State.MARK)
+			answer(msb, lsb, reply.scratch, 0, State.parse(state, reply.scratch), mode, reply);
+		else
+			answer(msb, lsb, parseState(state), mode, reply);
+	}
+	
+	// The same, with the body of a request frame: the UUID, then the 8-bit state, or the bytes of a 
+	// version 2 state. The two are told apart by the length, a version 2 state never takes one byte.
+	public static void answerFrame(byte[] body, int length, Reply reply)
+	{
+		long msb = Frames.getLong(body, 0);
+		long lsb = Frames.getLong(body, 8);
+		Category mode = ModeRegistry.get().mode;
+		if (length == Frames.REQUEST_BODY)
+			answer(msb, lsb, body[16] & 0xFF, mode, reply);
+		else if (length - Frames.UUID_BODY > State.MAX) // A frame may be longer than any state, its reply could not hold it.
+			throw new IllegalArgumentException("State too long");
+		else
+			answer(msb, lsb, body, Frames.UUID_BODY, length - Frames.UUID_BODY, mode, reply);
+	}
+	
+	// The same, for a client which sent an 8-bit state. Its decks always hold 4 items.
+	public static void answer(long msb, long lsb, int n, Category mode, Reply reply)
+	{
+		if (n < 0 || n > 0xFF) // Not a state the server sent, the client starts over.
+			n = 0;
+		reply.token = false; // An 8-bit state has no room for a token, so it keeps a session even when stateless.
+		reply.catalog = mode.catalog(); // The snapshot of the catalog the request is served from, even if the admin reloads it meanwhile.
+		int sent = serve(msb, lsb, readState(n, mode), Catalog.DECK, mode, reply);
+		reply.legacy = true;
+		reply.state = updateState(n, sent, mode);
+	}
+	
+	// The same, for a client which sent the version 2 state s[off, off + len). Its decks hold mode.deck items, 
+	// never more than the entries of the catalog snapshot the request is served from.
+	public static void answer(long msb, long lsb, byte[] s, int off, int len, Category mode, Reply reply)
+	{
+		reply.legacy = false;
+		reply.token = (Token.key != null);
+		reply.catalog = mode.catalog();
+		int length = Math.min(mode.deck, reply.catalog.size());
+		if (!reply.token)
 		{
-			ret = n | (1 << (s + offset));
+			int sent = serve(msb, lsb, Long.bitCount(State.mask(s, off, len, mode)), length, mode, reply);
+			reply.wideLength = State.put(s, off, len, mode, State.first(sent + 1), reply.wide);
+			return;
 		}
 		
-		// If the state is 0 or 4, switch all 4 bits to zero, and turn on the first bit to start a new cycle.
+		// Stateless, the deck comes from the state. A state without a valid MAC starts over as a new client.
+		if (!Token.verify(msb, lsb, s, off, len))
+			len = 0;
+		reply.deck = Token.deck(s, off, len, mode);
+		int sent = serve(msb, lsb, Long.bitCount(State.mask(s, off, len, mode)), length, mode, reply);
+		reply.wideLength = Token.put(msb, lsb, s, off, len, mode, State.first(sent + 1), reply.deck, reply.wide);
+	}
+	
+	// Every request ends up here, whatever the format of its state. The client has been sent the first 
+	// sent items of its deck of length items: leave the next one in the reply, and return its place in the deck.
+	// The item comes from reply.catalog, the catalog snapshot taken when the request was read.
+	static int serve(long msb, long lsb, int sent, int length, Category mode, Reply reply)
+	{
+		// In a cluster, the session of a client owned by another node is kept by that node.
+		if (Cluster.remote(msb, lsb, reply.token))
+			sent = Cluster.serve(msb, lsb, sent, length, mode, reply);
 		else
+			sent = session(msb, lsb, sent, length, mode, reply);
+		long deck = reply.deck;
+		
+		// The server mode, and the joke/proverb which is in correct order.
+		reply.mode = mode;
+		reply.item = Deck.get(deck, sent, reply.catalog.size());
+		reply.sent = sent + 1;
+		reply.length = length;
+		
+		// Log which joke/proverb will be sent to the client in this request, the log thread prints it.
+		Log.request(msb, lsb, mode, reply.item, reply.sent);
+		return sent;
+	}
+	
+	// The part of a request which needs the client's session: leave the client's deck in reply.deck, 
+	// a new one if its cycle is over, and return the place of the next item in it.
+	// In a cluster the owner of the client runs it, for the requests of every node.
+	static int session(long msb, long lsb, int sent, int length, Category mode, Reply reply)
+	{
+		// The client's deck of jokes or proverbs, from its session, or from its token in the stateless mode.
+		long deck = (reply.token? reply.deck: JokeServer.sessions.deck(msb, lsb, mode.field));
+		
+		// if some items but not all of them have been sent, it means that the client is not first time connected, 
+		// and has an associated deck which has had several items being sent before.
+		// Otherwise either the client is first time connected, or all the items of the deck had been sent to 
+		// the client, a new cycle need to be started. A client whose session has been evicted also starts a new cycle, 
+		// and so does a client whose deck was drawn for another catalog, before the admin reloaded it: 
+		// its deck is only found out of date, and replaced, when the client comes back. The deck is checked against 
+		// reply.catalog, the snapshot the item is read from, never against a catalog the admin published since.
+		Catalog catalog = reply.catalog;
+		if (!(sent > 0 && sent < length && deck != Deck.NONE && Deck.stamp(deck) == catalog.stamp))
 		{
-			n = (JokeServer.mode.equals("P")? (n & 0xF0):(n & 0x0F));
-			ret = n | (1 << offset);
+			// Call the randList() method to generate a deck of random selected joke's/proverb's indexes.
+			deck = randList(catalog);
+			if (!reply.token)
+			{
+				JokeServer.sessions.setDeck(msb, lsb, mode.field, deck);
+				Cluster.replicate(msb, lsb, mode, deck); // Keep a copy on the backup of the client.
+			}
+			sent = 0; // Start a new cycle, grab the first item in the id-associated deck.
 		}
-		return ret;	
+		
+		reply.deck = deck;
+		return sent;
+	}
 	
+	// This method is to generate a new deck, its items are distinct indexes of the catalog in random order.
+	// Nothing is drawn up front, each item is computed from the deck when it is needed (see Deck).
+	public static long randList()
+	{
+		return Deck.draw(0);
 	}
 	
-	// This method is to grab the corresponding joke/proverb based on the client state.
-	public static String getOutputs(String id, int n)
+	// The same, for the catalog snapshot the deck is drawn for, whose stamp the deck carries.
+	public static long randList(Catalog catalog)
+	{
+		return Deck.draw(catalog.stamp);
+	}
+	
+	// This method is to read the 8-bit state of the text protocol. A number out of 0..255, however long, 
+	// is no state the server sent, so the client is treated as a new one.
+	public static int parseState(String state)
 	{
-		if(JokeServer.mode.equals("P"))
+		boolean negative = state.startsWith("-");
+		int start = (negative || state.startsWith("+")? 1: 0);
+		if (state.length() == start)
+			throw new IllegalArgumentException("Bad state " + state);
+		int n = 0;
+		for (int i = start; i < state.length(); i++)
 		{
-			return JokeServer.proverbs.get(JokeServer.proverbsClients.get(id).get(n));
+			int d = Character.digit(state.charAt(i), 10);
+			if (d < 0)
+				throw new IllegalArgumentException("Bad state " + state);
+			n = Math.min(10 * n + d, 0x100); // Stops growing once out of range.
 		}
-		else
-		{
-			return JokeServer.jokes.get(JokeServer.jokesClients.get(id).get(n));
-		}		
+		return (negative || n > 0xFF? 0: n);
+	}
+	
+	// This method is to get the corresponding Joke/Proverb state of the client out of its 8-bit state: 
+	// the number of items of the current deck already sent, one bit is turned on for each of them.
+	public static int readState(int n, Category mode)
+	{
+		return Integer.bitCount(n & mode.legacyMask());
+	}
+	
+	// This method is to update the client's 8-bit state once the item at place sent of the deck is sent: 
+	// the first sent + 1 bits of the mode's four bits are on, the bits of the other mode are kept.
+	// A category added by the admin has no bits in an 8-bit state, so the state is returned unchanged.
+	public static int updateState(int n, int sent, Category mode)
+	{
+		if (mode.legacyMask() == 0)
+			return n;
+		int offset = Integer.numberOfTrailingZeros(mode.legacyMask()); // Points to the bits of the mode.
+		return (n & ~mode.legacyMask()) | ((int) State.first(sent + 1) << offset);
+	}
+	
+	// This method is to grab the corresponding joke/proverb based on the client state.
+	public static String getOutputs(String id, int n, Category mode)
+	{
+		return getOutputs(JokeServer.sessions.deck(SessionTable.msb(id), SessionTable.lsb(id), mode.field), n, mode);
+	}
+	
+	// The same, with the deck already looked up: one read of the catalog entry.
+	public static String getOutputs(long deck, int n, Category mode)
+	{
+		Catalog catalog = mode.catalog();
+		return catalog.get(Deck.get(deck, n, catalog.size()));
 	}	
 }
 
-
-// A thread class to enable the connections and executions of admin clients.
-class AdminThread implements Runnable 
-{	
-	  public static int port = 5050; // The default port for admin client
-	  
-	  AdminThread(){} // constructor.
-	    
-	  AdminThread(int newPort) // constructor with specified port number as an argument. 
-	  {
-		  port = newPort;
-	  }
-
-	  public void run() 
-	  { 	        
-	    int q_len = 6; 
-	    Socket sock;
-
-	    try
-	    {
-	      ServerSocket adminsock = new ServerSocket(port, q_len);
-	      while (true) 
-	      {
-	    	  // wait for the connections requested from admin clients.
-	    	  sock = adminsock.accept();
-	    	  new AdminWorker (sock).start(); 
-	      }
-	    }
-	    catch (IOException ioe) {System.out.println(ioe);}
-	  }
-}
-
-// An admin worker thread to run the admin clients.
-class AdminWorker extends Thread 
+// A category of content, such as jokes, proverbs, riddles or facts. Each category has its own catalog, 
+// its own deck length and its own deck in every session, and the server mode is one of them, chosen by 
+// its one-letter code. A category is found by its code in one array lookup. Jokes and proverbs are built in, 
+// the admin may register more, and enable or disable them, while the server runs.
+class Category
 {
-	Socket sock; // A local socket object sock.
-	AdminWorker (Socket s) {sock = s;} // Assign s to sock when this constructor is called.
+	static volatile Category[] byCode = new Category[128]; // The categories by code, replaced on each change.
+	static final List<Category> all = new CopyOnWriteArrayList<>(); // The categories in the order they were added.
+	
+	static final Category JOKE = new Category("J", "Joke", Worker.JMask, 0);
+	static final Category PROVERB = new Category("P", "Proverb", Worker.PMask, 1);
+	static
+	{
+		add(JOKE);
+		add(PROVERB);
+	}
+	
+	final String code; // The mode line sent to the clients, and the admin command which chooses the mode.
+	final int field; // The place of the deck of this category in a session (see SessionTable).
+	final int legacyMask; // The four bits of this category in an 8-bit state, 0 if it has none.
+	volatile String label; // The name shown on the consoles.
+	volatile Catalog catalog; // The entries.
+	volatile int deck = Catalog.DECK; // Number of items in a deck for version 2 states, set by "-deck=".
+	volatile boolean enabled = true; // A disabled category can not become the server mode.
+	
+	Category(String code, String label, int legacyMask, int index)
+	{
+		this.code = code;
+		this.label = label;
+		this.legacyMask = legacyMask;
+		this.field = SessionTable.DECKS + 8 * index;
+	}
+	
+	// The catalog of this category.
+	Catalog catalog() {return catalog;}
+	
+	// Replace the catalog by a new one, already loaded, in one write: the requests read the catalog once and 
+	// are served from that snapshot, so those in flight finish with the old one and no request waits for the swap.
+	// The old catalog stays in memory until the last request which uses it is done.
+	synchronized void publish(Catalog next)
+	{
+		Catalog now = catalog;
+		if (now != null)
+			next.stamp = (now.stamp + 1) & Deck.STAMP_MASK;
+		catalog = next;
+	}
+	
+	// The four bits of this category in an 8-bit state.
+	int legacyMask() {return legacyMask;}
+	
+	// The category of a code, or null if there is none.
+	static Category of(String code)
+	{
+		if (code == null || code.length() != 1 || code.charAt(0) >= 128)
+			return null;
+		return byCode[code.charAt(0)];
+	}
+	
+	static synchronized void add(Category c)
+	{
+		Category[] codes = byCode.clone();
+		codes[c.code.charAt(0)] = c;
+		byCode = codes;
+		all.add(c);
+	}
+	
+	// Add a category, or give a new catalog and deck length to an existing one. The deck length is cut 
+	// down to what the catalog can give. Returns an error message, or null if it is done.
+	static synchronized String register(String code, String label, Catalog catalog, int deck)
+	{
+		if (code.length() != 1 || code.charAt(0) < 'A' || code.charAt(0) > 'Z' || code.equals("S"))
+			return "A category code is one letter, other than S.";
+		if (catalog.size() < Catalog.DECK)
+			return "A catalog needs at least " + Catalog.DECK + " entries.";
+		
+		Category c = of(code);
+		if (c == null)
+		{
+			if (all.size() >= JokeServer.sessions.categories)
+				return "The sessions hold " + JokeServer.sessions.categories + " categories at most, see -categories=.";
+			c = new Category(code, label, 0, all.size());
+		}
+		c.label = label;
+		c.deck = Math.max(1, Math.min(deck, Math.min(State.MAX_DECK, catalog.size())));
+		c.publish(catalog);
+		if (!all.contains(c))
+			add(c);
+		return null;
+	}
+	
+	// The categories, returned to the admin by the "CATEGORIES" command.
+	static String report()
+	{
+		StringBuilder sb = new StringBuilder();
+		for (Category c : all)
+		{
+			sb.append(sb.length() > 0? "; ": "").append(c.code).append(' ').append(c.label).append(", ")
+					.append(c.catalog.size()).append(" entries, decks of ").append(c.deck)
+					.append(c.enabled? "": ", disabled").append(c == ModeRegistry.get().mode? ", current": "");
+		}
+		return sb.append('.').toString();
+	}
+}
+
+// The server mode at one point in time, and the epoch it was set in. It never changes, 
+// a change of mode replaces it.
+final class ModeSnapshot
+{
+	final Category mode;
+	final long epoch; // Number of mode changes since the server started.
+	
+	ModeSnapshot(Category mode, long epoch)
+	{
+		this.mode = mode;
+		this.epoch = epoch;
+	}
+}
+
+// The current server mode, shared by every Worker, event loop and AdminWorker. A request reads it once 
+// and is served in that mode from start to end, even if the admin changes the mode in the meantime.
+class ModeRegistry
+{
+	static final AtomicReference<ModeSnapshot> current = new AtomicReference<>(new ModeSnapshot(Category.JOKE, 0));
+	
+	// Held by the admin while it checks a category and then switches the mode to it or turns it off, so two 
+	// admin connections can not leave the server on a disabled category. The requests never take it.
+	static final Object admin = new Object();
+	
+	static ModeSnapshot get() {return current.get();}
+	
+	// Switch to the mode, and return false if the server is already in it.
+	static boolean set(Category mode)
+	{
+		while (true)
+		{
+			ModeSnapshot now = current.get();
+			if (now.mode == mode)
+				return false;
+			if (current.compareAndSet(now, new ModeSnapshot(mode, now.epoch + 1)))
+				return true;
+		}
+	}
+}
+
+
+// The answer to one request: the mode, the updated state and the catalog entry to send. The entry is never 
+// turned into a string on the way out, the reply is written straight from the memory of the catalog, 
+// together with the few bytes around it, in one gathering write. A connection reuses its Reply for every request.
+class Reply
+{
+	Category mode; // The server mode.
+	boolean legacy = true; // True if the client sent an 8-bit state, false for a version 2 state.
+	int state; // The updated 8-bit state.
+	byte[] wide = new byte[State.MAX]; // The updated version 2 state.
+	int wideLength; // Length of the updated version 2 state.
+	byte[] scratch = new byte[State.MAX]; // The version 2 state sent in a text request, once read.
+	Catalog catalog; // The catalog of the joke/proverb.
+	int item; // The index of the joke/proverb in the catalog.
+	int sent; // Number of items of the deck sent, this one included.
+	int length; // Number of items in the deck.
+	boolean token; // True if the deck travels in the version 2 state instead of the session (see Token).
+	long deck; // The deck of the item.
+	
+	ByteBuffer head = ByteBuffer.allocateDirect(32); // The bytes before the entry: the first two lines, or the frame header.
+	ByteBuffer view; // A view of the memory of the catalog, moved to the entry of each reply.
+	Catalog viewOf; // The catalog the view belongs to.
+	ByteBuffer newline = ByteBuffer.allocateDirect(1).put(0, (byte) '\n'); // The end of the last line.
+	ByteBuffer[] lines = new ByteBuffer[3]; // The parts of a text reply.
+	ByteBuffer[] frame = new ByteBuffer[2]; // The parts of a reply frame.
+	
+	// The joke/proverb as a string.
+	String text() {return catalog.get(item);}
+	
+	// The updated state as it is written in the text protocol.
+	String stateText() {return (legacy? String.valueOf(state): State.text(wide, wideLength));}
+	
+	// The parts of a text reply: the mode, the state and the joke/proverb in three lines.
+	ByteBuffer[] lines()
+	{
+		head(mode.code.length() + 14 + 2 * wideLength);
+		for (int i = 0; i < mode.code.length(); i++)
+		{
+			head.put((byte) mode.code.charAt(i));
+		}
+		head.put((byte) '\n');
+		if (legacy)
+			digits(state);
+		else
+			State.hex(wide, wideLength, head);
+		head.put((byte) '\n');
+		head.flip();
+		
+		newline.clear();
+		lines[0] = head;
+		lines[1] = entry();
+		lines[2] = newline;
+		return lines;
+	}
+	
+	// The parts of a reply frame: the length, the mode, the state and the joke/proverb. 
+	// A version 2 state is written as its length in one byte, then its bytes.
+	ByteBuffer[] frame()
+	{
+		frame[1] = entry();
+		int length = (legacy? 2: 2 + wideLength) + view.remaining();
+		head(5 + wideLength);
+		head.put((byte) (length >> 8)).put((byte) length).put((byte) mode.code.charAt(0));
+		if (legacy)
+			head.put((byte) state);
+		else
+			head.put((byte) wideLength).put(wide, 0, wideLength);
+		head.flip();
+		frame[0] = head;
+		return frame;
+	}
+	
+	// Clear the head, and make sure it can take n bytes.
+	void head(int n)
+	{
+		if (head.capacity() < n)
+			head = ByteBuffer.allocateDirect(n);
+		head.clear();
+	}
+	
+	// Put the decimal digits of a non-negative number into the head.
+	void digits(int v)
+	{
+		int d = 1;
+		while (d <= v / 10)
+		{
+			d *= 10;
+		}
+		for (; d > 0; d /= 10)
+		{
+			head.put((byte) ('0' + (v / d) % 10));
+		}
+	}
+	
+	// Move the view to the entry, a new view is only needed when the catalog changes.
+	ByteBuffer entry()
+	{
+		if (viewOf != catalog)
+		{
+			view = catalog.data.duplicate();
+			viewOf = catalog;
+		}
+		view.clear();
+		view.limit(catalog.end(item));
+		view.position(catalog.start(item));
+		return view;
+	}
+	
+	// Write all the parts, a blocking channel may still take them in more than one write.
+	static void write(WritableByteChannel ch, ByteBuffer[] parts) throws IOException
+	{
+		ByteBuffer last = parts[parts.length - 1];
+		if (ch instanceof GatheringByteChannel)
+		{
+			while (last.hasRemaining())
+			{
+				((GatheringByteChannel) ch).write(parts);
+			}
+			return;
+		}
+		for (ByteBuffer b : parts)
+		{
+			while (b.hasRemaining())
+			{
+				ch.write(b);
+			}
+		}
+	}
+}
+
+// The state a client sends with each request and gets back updated, in one of two formats. The server 
+// answers each client in the format it used, so the first clients keep working unchanged.
+// The 8-bit state has four bits for jokes and four for proverbs, one turned on for each item of the deck 
+// already sent, so its decks hold 4 items (see Worker.readState).
+// A version 2 state has, for each mode the client has started, the code byte of the mode and a varint of 
+// the mask of the items already sent. The number of items sent is the number of bits of the mask, so a 
+// deck holds up to MAX_DECK items and each new mode only adds a few bytes. The text protocol writes it 
+// in hex after a MARK, a binary request frame carries its bytes after the UUID.
+class State
+{
+	static final char MARK = '#'; // Starts a version 2 state in the text protocol.
+	static final int MAX = 255; // Longest version 2 state, in bytes.
+	static final int MAX_DECK = 64; // Most items in a deck of a version 2 state.
+	static final byte[] HEX = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
+	
+	// The mask of the first k items.
+	static long first(int k)
+	{
+		return (k >= 64? -1L: (1L << k) - 1);
+	}
+	
+	// The mask of the mode in the state s[off, off + len), 0 if the client has not started it.
+	static long mask(byte[] s, int off, int len, Category mode)
+	{
+		int end = off + len;
+		int i = off;
+		while (i < end)
+		{
+			int code = s[i++] & 0xFF;
+			if (code == mode.code.charAt(0))
+				return varint(s, i, end);
+			i = skip(s, i, end);
+		}
+		return 0;
+	}
+	
+	// Write into out the state s[off, off + len) with the mask of the mode replaced, and return its length.
+	// The other modes are copied as they are, so out must not be s.
+	static int put(byte[] s, int off, int len, Category mode, long mask, byte[] out)
+	{
+		int end = off + len;
+		int o = 0;
+		int i = off;
+		while (i < end)
+		{
+			int start = i;
+			int code = s[i++] & 0xFF;
+			i = skip(s, i, end);
+			if (code != mode.code.charAt(0))
+			{
+				System.arraycopy(s, start, out, o, i - start);
+				o += i - start;
+			}
+		}
+		
+		if (o + 11 > out.length) // The code and a varint of up to 10 bytes.
+			throw new IllegalArgumentException("State too long");
+		out[o++] = (byte) mode.code.charAt(0);
+		return putVarint(out, o, mask);
+	}
+	
+	// Write the varint of v at out[o], and return the place after it.
+	static int putVarint(byte[] out, int o, long v)
+	{
+		for (; (v & ~0x7FL) != 0; v >>>= 7)
+		{
+			out[o++] = (byte) ((v & 0x7F) | 0x80);
+		}
+		out[o++] = (byte) v;
+		return o;
+	}
+	
+	// The varint at s[i], 7 bits per byte, the low bits first, the high bit set on every byte but the last.
+	static long varint(byte[] s, int i, int end)
+	{
+		long v = 0;
+		for (int shift = 0; shift < 64 && i < end; shift += 7)
+		{
+			int b = s[i++];
+			v |= (long) (b & 0x7F) << shift;
+			if (b >= 0)
+				return v;
+		}
+		throw new IllegalArgumentException("Bad state");
+	}
+	
+	// The place after the varint at s[i].
+	static int skip(byte[] s, int i, int end)
+	{
+		for (int n = 0; n < 10 && i < end; n++)
+		{
+			if (s[i++] >= 0)
+				return i;
+		}
+		throw new IllegalArgumentException("Bad state");
+	}
+	
+	// Read a version 2 state written in hex after the MARK into out, and return its length.
+	static int parse(String text, byte[] out)
+	{
+		int len = (text.length() - 1) / 2;
+		if (text.length() % 2 != 1 || len > out.length)
+			throw new IllegalArgumentException("Bad state " + text);
+		for (int i = 0; i < len; i++)
+		{
+			out[i] = (byte) ((digit(text.charAt(1 + 2 * i)) << 4) | digit(text.charAt(2 + 2 * i)));
+		}
+		return len;
+	}
+	
+	static int digit(char c)
+	{
+		int d = Character.digit(c, 16);
+		if (d < 0)
+			throw new IllegalArgumentException("Bad state");
+		return d;
+	}
+	
+	// Write the MARK and the state in hex.
+	static void hex(byte[] s, int len, ByteBuffer out)
+	{
+		out.put((byte) MARK);
+		for (int i = 0; i < len; i++)
+		{
+			out.put(HEX[(s[i] >> 4) & 0xF]).put(HEX[s[i] & 0xF]);
+		}
+	}
+	
+	// The state as it is written in the text protocol.
+	static String text(byte[] s, int len)
+	{
+		StringBuilder sb = new StringBuilder(1 + 2 * len).append(MARK);
+		for (int i = 0; i < len; i++)
+		{
+			sb.append((char) HEX[(s[i] >> 4) & 0xF]).append((char) HEX[s[i] & 0xF]);
+		}
+		return sb.toString();
+	}
+}
+
+// The token of the stateless mode, turned on by "-stateless". The server then keeps no session for the 
+// clients with a version 2 state: the deck of each category travels in the state itself, as an entry with 
+// the code of the category plus DECK, and the state ends with an HMAC-SHA256 of the client's UUID and of 
+// all the entries before it, cut to 63 bits. Any server started with the same "-secret=" can answer any 
+// request, and a client can not forge a deck, since a state it changed no longer matches its MAC and simply 
+// starts over. A state the server signed stays valid though: nothing is kept, so a client which sends an older 
+// state again gets the items which followed it again. The clients read the entries of their mode and carry 
+// the rest as they are.
+class Token
+{
+	static final int DECK = 0x80; // Added to the code of a category for the entry of its deck.
+	static final int MAC = '!'; // Code of the last entry, the MAC of the state.
+	
+	static byte[] key; // The HMAC key, null when the server keeps sessions.
+	
+	// One MAC per thread, a Mac object is not thread-safe and costly to create.
+	static final ThreadLocal<Mac> macs = ThreadLocal.withInitial(() -> {
+		try
+		{
+			Mac mac = Mac.getInstance("HmacSHA256");
+			mac.init(new SecretKeySpec(key, "HmacSHA256"));
+			return mac;
+		}
+		catch (GeneralSecurityException x)
+		{
+			throw new IllegalStateException(x);
+		}
+	});
+	
+	// Turn the stateless mode on with the shared secret, or with a random key known only to this server.
+	static void init(String secret)
+	{
+		if (secret == null)
+		{
+			key = new byte[32];
+			new SecureRandom().nextBytes(key);
+			System.out.println("Stateless mode with a random key, set -secret= to share the tokens with other servers.");
+		}
+		else
+		{
+			key = secret.getBytes(Frames.UTF8);
+		}
+	}
+	
+	// The MAC of the client's UUID and of s[off, off + len).
+	static long sign(long msb, long lsb, byte[] s, int off, int len)
+	{
+		Mac mac = macs.get();
+		for (int shift = 56; shift >= 0; shift -= 8)
+		{
+			mac.update((byte) (msb >>> shift));
+		}
+		for (int shift = 56; shift >= 0; shift -= 8)
+		{
+			mac.update((byte) (lsb >>> shift));
+		}
+		mac.update(s, off, len);
+		byte[] h = mac.doFinal();
+		return Frames.getLong(h, 0) & Long.MAX_VALUE;
+	}
+	
+	// True if the state s[off, off + len) ends with its MAC.
+	static boolean verify(long msb, long lsb, byte[] s, int off, int len)
+	{
+		int end = off + len;
+		int i = off;
+		while (i < end)
+		{
+			int start = i;
+			int code = s[i++] & 0xFF;
+			i = State.skip(s, i, end);
+			if (code == MAC)
+				return i == end && State.varint(s, start + 1, end) == sign(msb, lsb, s, off, start - off);
+		}
+		return false;
+	}
+	
+	// The deck of the category in the state s[off, off + len), Deck.NONE if it has none.
+	static long deck(byte[] s, int off, int len, Category mode)
+	{
+		int end = off + len;
+		int i = off;
+		while (i < end)
+		{
+			int code = s[i++] & 0xFF;
+			if (code == (mode.code.charAt(0) | DECK))
+				return State.varint(s, i, end);
+			i = State.skip(s, i, end);
+		}
+		return Deck.NONE;
+	}
+	
+	// Write into out the state s[off, off + len) with the mask and the deck of the category replaced, 
+	// then its new MAC, and return its length. Out must not be s.
+	static int put(long msb, long lsb, byte[] s, int off, int len, Category mode, long mask, long deck, byte[] out)
+	{
+		int end = off + len;
+		int o = 0;
+		int i = off;
+		while (i < end)
+		{
+			int start = i;
+			int code = s[i++] & 0xFF;
+			i = State.skip(s, i, end);
+			if (code != mode.code.charAt(0) && code != (mode.code.charAt(0) | DECK) && code != MAC)
+			{
+				System.arraycopy(s, start, out, o, i - start);
+				o += i - start;
+			}
+		}
+		
+		if (o + 33 > out.length) // Three codes and varints of up to 10 bytes.
+			throw new IllegalArgumentException("State too long");
+		out[o++] = (byte) mode.code.charAt(0);
+		o = State.putVarint(out, o, mask);
+		out[o++] = (byte) (mode.code.charAt(0) | DECK);
+		o = State.putVarint(out, o, deck);
+		long tag = sign(msb, lsb, out, 0, o);
+		out[o++] = (byte) MAC;
+		return State.putVarint(out, o, tag);
+	}
+}
+
+// The sessions of the clients, shared by every Worker and event loop. Each session is a fixed slot of 
+// slot bytes in off-heap memory, keyed by the client's UUID as two longs, so the Java heap does not grow 
+// with the number of clients. The table is split into segments with their own lock, so the Workers of 
+// different clients rarely contend, and each segment uses open addressing with linear probing.
+// A session idle for longer than the TTL is dropped, and when a segment is full, the least recently used 
+// of a few sampled sessions is evicted. A client whose session is gone simply starts a new cycle.
+class SessionTable
+{
+	// The layout of a slot: the UUID, the last access time, then one deck (see Deck) per category.
+	static final int MSB = 0, LSB = 8, ACCESS = 16, DECKS = 24;
+	
+	int categories; // Number of categories a session has room for, set by "-categories=".
+	int slot; // Bytes in a slot.
+	SessionSegment[] segments; // The segments, chosen by the high bits of the hash.
+	int segmentShift; // Shift giving the segment of a hash.
+	int capacity; // Maximum number of sessions.
+	int ttl; // Seconds a session may stay idle.
+	long start = System.currentTimeMillis(); // Access times are seconds since this moment, plus one.
+	AtomicLong evictions = new AtomicLong(); // Sessions evicted because their segment was full.
+	AtomicLong expirations = new AtomicLong(); // Sessions dropped because they stayed idle too long.
+	volatile SessionLog log; // Logs every deck stored and every session removed with "-persist=", null otherwise.
+	
+	SessionTable(int capacity, int ttl, int categories)
+	{
+		this.capacity = capacity;
+		this.ttl = ttl;
+		this.categories = categories;
+		this.slot = DECKS + 8 * categories;
+		
+		// About four segments per core, each one at most half full.
+		int count = Integer.highestOneBit(Math.max(1, Math.min(capacity / 16, 4 * Runtime.getRuntime().availableProcessors())) * 2 - 1);
+		segments = new SessionSegment[count];
+		segmentShift = 64 - Integer.numberOfTrailingZeros(count);
+		for (int i = 0; i < count; i++)
+		{
+			segments[i] = new SessionSegment(this, (capacity + count - 1) / count);
+		}
+		
+		// Drop the idle sessions in the background, so that the memory of gone clients is given back.
+		Thread sweeper = new Thread(() -> {
+			while (true)
+			{
+				try {Thread.sleep(Math.max(1000L, ttl * 250L));}
+				catch (InterruptedException x) {return;}
+				for (SessionSegment segment : segments)
+				{
+					segment.sweep(now());
+				}
+			}
+		}, "session-sweeper");
+		sweeper.setDaemon(true);
+		sweeper.start();
+	}
+	
+	// The current time in seconds, never 0 since 0 marks an empty slot.
+	int now()
+	{
+		return (int) ((System.currentTimeMillis() - start) / 1000) + 1;
+	}
+	
+	// Mix the two halves of the UUID, the high bits choose the segment, the low bits the slot.
+	static long hash(long msb, long lsb)
+	{
+		long h = (msb ^ Long.rotateLeft(lsb, 32)) * 0x9E3779B97F4A7C15L;
+		return h ^ (h >>> 29);
+	}
+	
+	SessionSegment segment(long h)
+	{
+		return segments[(int) (h >>> segmentShift) & (segments.length - 1)];
+	}
+	
+	// The client's deck at the field of a category, or Deck.NONE if the client has no session.
+	long deck(long msb, long lsb, int field)
+	{
+		long h = hash(msb, lsb);
+		return segment(h).deck(msb, lsb, h, field, now());
+	}
+	
+	// Store the client's deck at the field of a category, creating the session if needed.
+	void setDeck(long msb, long lsb, int field, long deck)
+	{
+		long h = hash(msb, lsb);
+		segment(h).setDeck(msb, lsb, h, field, deck, now());
+	}
+	
+	// Remove the client's session, used by the replay of the logged evictions and expirations.
+	void remove(long msb, long lsb)
+	{
+		long h = hash(msb, lsb);
+		segment(h).remove(msb, lsb, h);
+	}
+	
+	// Number of sessions.
+	int size()
+	{
+		int size = 0;
+		for (SessionSegment segment : segments)
+		{
+			size += segment.size;
+		}
+		return size;
+	}
+	
+	// The figures of the table, returned to the admin by the "SESSIONS" command.
+	String report()
+	{
+		return size() + " sessions of " + capacity + ", " + slot + " bytes each in " + segments.length + " segments, idle TTL " 
+				+ ttl + " s, " + expirations.get() + " expired, " + evictions.get() + " evicted." + (log != null? " " + log.report(): "");
+	}
+	
+	// The high half of the client's UUID. An id which is not a UUID is hashed into two longs instead.
+	static long msb(String id)
+	{
+		if (!isUUID(id))
+			return mix(id, 0x9E3779B97F4A7C15L);
+		return (hex(id, 0, 8) << 32) | (hex(id, 9, 13) << 16) | hex(id, 14, 18);
+	}
+	
+	// The low half of the client's UUID.
+	static long lsb(String id)
+	{
+		if (!isUUID(id))
+			return mix(id, 0xC2B2AE3D27D4EB4FL);
+		return (hex(id, 19, 23) << 48) | hex(id, 24, 36);
+	}
+	
+	// Check the 8-4-4-4-12 layout of a UUID string, the way UUID.toString() writes it.
+	static boolean isUUID(String id)
+	{
+		if (id.length() != 36 || id.charAt(8) != '-' || id.charAt(13) != '-' || id.charAt(18) != '-' || id.charAt(23) != '-')
+			return false;
+		for (int i = 0; i < 36; i++)
+		{
+			if (i != 8 && i != 13 && i != 18 && i != 23 && Character.digit(id.charAt(i), 16) < 0)
+				return false;
+		}
+		return true;
+	}
+	
+	static long hex(String id, int from, int to)
+	{
+		long v = 0;
+		for (int i = from; i < to; i++)
+		{
+			v = (v << 4) | Character.digit(id.charAt(i), 16);
+		}
+		return v;
+	}
+	
+	static long mix(String id, long seed)
+	{
+		long h = seed;
+		for (int i = 0; i < id.length(); i++)
+		{
+			h = (h ^ id.charAt(i)) * 0x100000001B3L;
+		}
+		return h ^ (h >>> 31);
+	}
+}
+
+// One segment of the session table: an open-addressing table of slots in a direct buffer, 
+// guarded by the segment's own lock. Removal shifts the following slots back, so no tombstones are left.
+class SessionSegment
+{
+	static final int SAMPLE = 8; // Number of sessions looked at to find the one to evict.
+	
+	SessionTable table; // The table this segment belongs to.
+	ByteBuffer slots; // The slots, off the Java heap.
+	int mask; // Number of slots minus one.
+	int capacity; // Maximum number of sessions in this segment.
+	int size; // Number of sessions in this segment.
+	
+	SessionSegment(SessionTable table, int capacity)
+	{
+		this.table = table;
+		this.capacity = Math.max(1, capacity);
+		int length = Integer.highestOneBit(this.capacity * 2 - 1) * 2; // At most half of the slots are used.
+		slots = ByteBuffer.allocateDirect(length * table.slot);
+		mask = length - 1;
+	}
+	
+	int access(int i) {return slots.getInt(i * table.slot + SessionTable.ACCESS);}
+	
+	// The slot of the client, or -1 if the client has no session.
+	int find(long msb, long lsb, long h)
+	{
+		for (int i = (int) h & mask; access(i) != 0; i = (i + 1) & mask)
+		{
+			int base = i * table.slot;
+			if (slots.getLong(base + SessionTable.MSB) == msb && slots.getLong(base + SessionTable.LSB) == lsb)
+				return i;
+		}
+		return -1;
+	}
+	
+	synchronized long deck(long msb, long lsb, long h, int field, int now)
+	{
+		int i = find(msb, lsb, h);
+		if (i < 0)
+			return Deck.NONE;
+		
+		// A session idle for too long is dropped, as if the client had never been seen.
+		if (now - access(i) > table.ttl)
+		{
+			remove(i);
+			table.expirations.incrementAndGet();
+			return Deck.NONE;
+		}
+		
+		slots.putInt(i * table.slot + SessionTable.ACCESS, now);
+		return slots.getLong(i * table.slot + field);
+	}
+	
+	synchronized void setDeck(long msb, long lsb, long h, int field, long deck, int now)
+	{
+		int i = find(msb, lsb, h);
+		if (i < 0)
+		{
+			// Make room first, then take the first empty slot of the probe sequence.
+			if (size >= capacity)
+				evict();
+			i = (int) h & mask;
+			while (access(i) != 0)
+			{
+				i = (i + 1) & mask;
+			}
+			
+			int base = i * table.slot;
+			slots.putLong(base + SessionTable.MSB, msb);
+			slots.putLong(base + SessionTable.LSB, lsb);
+			for (int b = SessionTable.DECKS; b < table.slot; b += 8)
+			{
+				slots.putLong(base + b, Deck.NONE);
+			}
+			size++;
+		}
+		
+		slots.putLong(i * table.slot + field, deck);
+		slots.putInt(i * table.slot + SessionTable.ACCESS, now);
+		
+		// Logged under the lock of the segment, so the log holds the decks of a client in the order they were stored.
+		SessionLog log = table.log;
+		if (log != null)
+			log.append(msb, lsb, field, deck);
+	}
+	
+	// Remove the client's session, if it has one.
+	synchronized void remove(long msb, long lsb, long h)
+	{
+		int i = find(msb, lsb, h);
+		if (i >= 0)
+			remove(i);
+	}
+	
+	// Write the sessions of this segment to the snapshot, each one as its UUID and its decks, and return their number.
+	// The caller holds the lock of the segment.
+	int dump(ByteBuffer out, int categories)
+	{
+		int count = 0;
+		for (int i = 0; i <= mask; i++)
+		{
+			if (access(i) == 0)
+				continue;
+			int base = i * table.slot;
+			out.putLong(slots.getLong(base + SessionTable.MSB));
+			out.putLong(slots.getLong(base + SessionTable.LSB));
+			for (int c = 0; c < categories; c++)
+			{
+				out.putLong(slots.getLong(base + SessionTable.DECKS + 8 * c));
+			}
+			count++;
+		}
+		return count;
+	}
+	
+	// Evict the least recently used of a few sessions picked at random.
+	void evict()
+	{
+		int oldest = -1;
+		for (int n = 0; n < SAMPLE; n++)
+		{
+			int i = ThreadLocalRandom.current().nextInt(mask + 1);
+			while (access(i) == 0)
+			{
+				i = (i + 1) & mask;
+			}
+			if (oldest < 0 || access(i) < access(oldest))
+				oldest = i;
+		}
+		remove(oldest);
+		table.evictions.incrementAndGet();
+	}
+	
+	// Empty slot i, and move back the following slots which would no longer be found.
+	void remove(int i)
+	{
+		SessionLog log = table.log;
+		if (log != null) // Logged under the lock of the segment, like the decks.
+			log.remove(slots.getLong(i * table.slot + SessionTable.MSB), slots.getLong(i * table.slot + SessionTable.LSB));
+		
+		int j = i;
+		while (true)
+		{
+			j = (j + 1) & mask;
+			if (access(j) == 0)
+				break;
+			
+			// The home slot of the session at j, it may move to i only if i is between its home and j.
+			int base = j * table.slot;
+			int home = (int) SessionTable.hash(slots.getLong(base + SessionTable.MSB), slots.getLong(base + SessionTable.LSB)) & mask;
+			boolean movable = (j > i? (home <= i || home > j): (home <= i && home > j));
+			if (movable)
+			{
+				for (int b = 0; b < table.slot; b += 8)
+				{
+					slots.putLong(i * table.slot + b, slots.getLong(base + b));
+				}
+				i = j;
+			}
+		}
+		
+		for (int b = 0; b < table.slot; b += 8)
+		{
+			slots.putLong(i * table.slot + b, 0L);
+		}
+		size--;
+	}
+	
+	// Drop the sessions which have been idle longer than the TTL.
+	synchronized void sweep(int now)
+	{
+		for (int i = 0; i <= mask; i++)
+		{
+			// A removal may move another session into slot i, so look at it again.
+			while (access(i) != 0 && now - access(i) > table.ttl)
+			{
+				remove(i);
+				table.expirations.incrementAndGet();
+			}
+		}
+	}
+}
+
+// Keeps the sessions across restarts and crashes, with "-persist=dir". Every deck stored in the session table, and 
+// every session evicted or expired, is also appended to a change log, a write-ahead log, in memory. A background 
+// thread writes it, at once when a buffer is full, and forces it to disk every "-fsync=" ms, so no request waits 
+// for the disk, and a crash loses the changes of the last interval at most. Every 
+// "-snapshot=" seconds, and when the admin shuts the server down, the whole table is written to a snapshot, 
+// each segment copied in memory under its lock and written after, and the older logs are deleted. At startup the snapshot is read, then the logs written since, each 
+// session and each record in O(1), so a restart takes time in proportion to the sessions. A recovered session 
+// starts its idle time again. Each node of a cluster needs its own directory.
+//
+// The snapshot "sessions.snap" holds a header of HEADER bytes (MAGIC, the generation of the first log to replay 
+// after it, the number of sessions and the number of categories), the code of the category of each deck of a 
+// session (0 for none), then for each session its UUID and its decks. The logs "sessions.<generation>.wal" hold 
+// records of RECORD bytes: the UUID, the deck, the place of the deck in a slot with the code of its category 
+// (REMOVED for a session which is gone) and a check of the record, so a record torn by a crash ends the replay 
+// of its log. The directory is forced too once a file is created or renamed in it. The categories registered by 
+// the admin are not there yet at startup, and may come back at other places: a deck goes back to the place of 
+// its category now, and the decks of the categories not registered are dropped.
+// A snapshot starts a new log first, then writes the segments one at a time: a deck stored meanwhile is in the 
+// snapshot or in the new log, or both, and replaying it again gives the same deck.
+class SessionLog implements Runnable
+{
+	static final long MAGIC = 0x4A4F4B45534E5032L; // "JOKESNP2", the start of a snapshot.
+	static final int HEADER = 32;
+	static final int RECORD = 32;
+	static final int BUFFER = RECORD * 8192; // Records waiting to be written, a full buffer is queued for the log thread.
+	static final int BUFFERS = 4; // Buffers kept for reuse. When the disk falls behind more are made, a request never waits.
+	static final int REMOVED = 0; // The place of a record which removes the session, never the place of a deck.
+	static final long CHUNK = 1 << 30; // Bytes of the snapshot mapped at once while it is read.
+	
+	SessionTable table; // The sessions.
+	Path dir; // The directory of the snapshot and the logs.
+	int fsync; // Milliseconds between two writes of the log.
+	int snapshotSeconds; // Seconds between two snapshots.
+	volatile long generation; // The generation of the current log.
+	FileChannel log; // The current log, only written while holding io.
+	final Object io = new Object(); // Held while the log is written, forced or replaced.
+	final Object snapshotting = new Object(); // Held while a snapshot is written.
+	ByteBuffer staging; // A copy of the segment a snapshot writes, guarded by snapshotting.
+	ByteBuffer pending = ByteBuffer.allocateDirect(BUFFER); // Records appended since the last write, guarded by this.
+	ArrayDeque<ByteBuffer> full = new ArrayDeque<>(); // Full buffers waiting for the log thread, oldest first, guarded by this.
+	ArrayDeque<ByteBuffer> free = new ArrayDeque<>(); // Empty buffers, guarded by this.
+	boolean dirty; // True if the log was written and not forced yet, guarded by io.
+	boolean snapshotSoon; // True if logs were replayed at startup, the first snapshot then comes at once.
+	
+	AtomicLong logged = new AtomicLong(); // Records appended.
+	volatile long lastForce; // Time of the last force to disk.
+	volatile String lastSnapshot = "no snapshot yet"; // What the last snapshot wrote.
+	String recovered = "nothing to recover"; // What the recovery found.
+	long dropped; // Decks of categories which are not registered any more, not recovered.
+	
+	SessionLog(SessionTable table, Path dir, int fsync, int snapshotSeconds)
+	{
+		this.table = table;
+		this.dir = dir;
+		this.fsync = fsync;
+		this.snapshotSeconds = snapshotSeconds;
+	}
+	
+	// Get the sessions back from the directory, then log every change of the table from now on.
+	static SessionLog open(SessionTable table, String dir, int fsync, int snapshotSeconds) throws IOException
+	{
+		SessionLog l = new SessionLog(table, Paths.get(dir), fsync, snapshotSeconds);
+		Files.createDirectories(l.dir);
+		l.recover();
+		System.out.println("Sessions kept in " + dir + ", " + l.recovered + ".");
+		table.log = l;
+		
+		Thread t = new Thread(l, "session-log");
+		t.setDaemon(true);
+		t.start();
+		return l;
+	}
+	
+	// Read the snapshot, then replay the logs from its generation on, oldest first, and start a new log.
+	void recover() throws IOException
+	{
+		long start = System.nanoTime();
+		long first = 0; // The first log to replay.
+		long sessions = 0;
+		Path snap = dir.resolve("sessions.snap");
+		if (Files.exists(snap))
+		{
+			try (FileChannel ch = FileChannel.open(snap, StandardOpenOption.READ))
+			{
+				ByteBuffer header = ch.map(FileChannel.MapMode.READ_ONLY, 0, HEADER);
+				if (header.getLong(0) != MAGIC)
+					throw new IOException(snap + " is not a snapshot of the sessions");
+				first = header.getLong(8);
+				sessions = header.getLong(16);
+				int categories = header.getInt(24);
+				ByteBuffer codes = ch.map(FileChannel.MapMode.READ_ONLY, HEADER, categories);
+				int[] fields = new int[categories];
+				for (int c = 0; c < categories; c++)
+				{
+					fields[c] = field(codes.get(c) & 0xFF);
+				}
+				readSnapshot(ch, HEADER + categories, sessions, fields);
+			}
+		}
+		
+		TreeMap<Long, Path> logs = logs();
+		long records = 0;
+		for (Long g : logs.keySet())
+		{
+			if (g < first) // Already in the snapshot.
+				Files.delete(logs.get(g));
+			else
+				records += replay(logs.get(g));
+		}
+		
+		generation = Math.max(first, logs.isEmpty()? 0: logs.lastKey() + 1);
+		log = openLog(generation);
+		snapshotSoon = (records > 0);
+		recovered = "recovered " + table.size() + " sessions from " + sessions + " in the snapshot and " + records 
+				+ " logged changes in " + (System.nanoTime() - start) / 1000000 + " ms" 
+				+ (dropped > 0? ", dropped " + dropped + " decks of categories not registered": "");
+	}
+	
+	// The place in a slot of the deck of the category with the code, or -1 if there is no such category now.
+	static int field(int code)
+	{
+		Category c = (code > 0 && code < 128? Category.byCode[code]: null);
+		return (c != null? c.field: -1);
+	}
+	
+	// The code of the category whose deck is at the place in a slot, 0 if there is none.
+	static int code(int field)
+	{
+		int c = (field - SessionTable.DECKS) / 8;
+		return (c < Category.all.size()? Category.all.get(c).code.charAt(0): 0);
+	}
+	
+	// Put the sessions of the snapshot, from pos on, back in the table, each deck at the place of its category.
+	void readSnapshot(FileChannel ch, long pos, long count, int[] fields) throws IOException
+	{
+		int categories = fields.length;
+		int record = 16 + 8 * categories;
+		long perChunk = CHUNK / record;
+		for (long done = 0; done < count; )
+		{
+			long n = Math.min(perChunk, count - done);
+			MappedByteBuffer m = ch.map(FileChannel.MapMode.READ_ONLY, pos, n * record);
+			for (long i = 0; i < n; i++)
+			{
+				long msb = m.getLong();
+				long lsb = m.getLong();
+				for (int c = 0; c < categories; c++)
+				{
+					long deck = m.getLong();
+					if (deck == Deck.NONE)
+						continue;
+					if (fields[c] < 0)
+						dropped++;
+					else
+						table.setDeck(msb, lsb, fields[c], deck);
+				}
+			}
+			done += n;
+			pos += n * record;
+		}
+	}
+	
+	// Store the decks of a log again, in order, up to its end or its first torn record. Return the number of records.
+	long replay(Path file) throws IOException
+	{
+		long records = 0;
+		try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ))
+		{
+			ByteBuffer b = ByteBuffer.allocateDirect(RECORD * 32768);
+			while (ch.read(b) > 0 || b.position() > 0)
+			{
+				b.flip();
+				while (b.remaining() >= RECORD)
+				{
+					long msb = b.getLong();
+					long lsb = b.getLong();
+					long deck = b.getLong();
+					int place = b.getInt();
+					if (b.getInt() != check(msb, lsb, deck, place))
+					{
+						Log.error("Replay of " + file + " stopped at a torn record after " + records + " records.");
+						return records;
+					}
+					int field = (place == REMOVED? REMOVED: field(place >>> 16));
+					if (field == REMOVED)
+						table.remove(msb, lsb);
+					else if (field < 0)
+						dropped++;
+					else
+						table.setDeck(msb, lsb, field, deck);
+					records++;
+				}
+				if (b.hasRemaining() && ch.position() == ch.size()) // A record cut short by a crash.
+					return records;
+				b.compact();
+			}
+		}
+		return records;
+	}
+	
+	// The logs of the directory, by generation.
+	TreeMap<Long, Path> logs() throws IOException
+	{
+		TreeMap<Long, Path> logs = new TreeMap<>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "sessions.*.wal"))
+		{
+			for (Path f : files)
+			{
+				String name = f.getFileName().toString();
+				try
+				{
+					logs.put(Long.parseLong(name.substring("sessions.".length(), name.length() - ".wal".length())), f);
+				}
+				catch (NumberFormatException x) {}
+			}
+		}
+		return logs;
+	}
+	
+	// Create the log of a generation. Its name is forced to disk before any record, or a crash could lose the whole file.
+	FileChannel openLog(long g) throws IOException
+	{
+		FileChannel ch = FileChannel.open(dir.resolve("sessions." + g + ".wal"), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		syncDirectory();
+		return ch;
+	}
+	
+	// Force the names of the directory to disk, so a file created, renamed or deleted in it stays so after a crash. 
+	// Some systems can not open a directory (Windows), their file systems keep the names of a forced file anyway.
+	void syncDirectory()
+	{
+		try (FileChannel ch = FileChannel.open(dir, StandardOpenOption.READ))
+		{
+			ch.force(true);
+		}
+		catch (IOException x) {}
+	}
+	
+	// The check of a record, which a record of zeros or a torn one does not pass.
+	static int check(long msb, long lsb, long deck, int field)
+	{
+		return (int) Deck.mix(msb ^ Long.rotateLeft(lsb, 17) ^ Long.rotateLeft(deck, 31) ^ ((long) field << 48) ^ MAGIC);
+	}
+	
+	// Log a deck stored in the table. The caller holds the lock of the segment, so this never touches the disk: 
+	// a full buffer is handed to the log thread, which is woken to write it, and the caller goes on with an empty one.
+	// The place is logged with the code of its category, which finds the category again after a restart.
+	synchronized void append(long msb, long lsb, int field, long deck)
+	{
+		int place = (field == REMOVED? REMOVED: code(field) << 16 | field);
+		if (pending.remaining() < RECORD)
+		{
+			full.add(pending);
+			pending = buffer();
+			notifyAll();
+		}
+		pending.putLong(msb).putLong(lsb).putLong(deck).putInt(place).putInt(check(msb, lsb, deck, place));
+		logged.incrementAndGet();
+	}
+	
+	// Log a session evicted or expired, so it does not come back when the log is replayed.
+	void remove(long msb, long lsb)
+	{
+		append(msb, lsb, REMOVED, Deck.NONE);
+	}
+	
+	// An empty buffer, a new one if none is left. The caller holds this.
+	ByteBuffer buffer()
+	{
+		ByteBuffer b = free.poll();
+		return (b != null? b: ByteBuffer.allocateDirect(BUFFER));
+	}
+	
+	// Write the records appended so far to the log, and force the log to disk if asked. The buffers are taken 
+	// under the lock of the log and written outside of it, so the requests go on appending meanwhile.
+	void write(boolean force) throws IOException
+	{
+		synchronized (io)
+		{
+			ArrayList<ByteBuffer> batch = new ArrayList<>();
+			synchronized (this)
+			{
+				batch.addAll(full);
+				full.clear();
+				if (pending.position() > 0)
+				{
+					batch.add(pending);
+					pending = buffer();
+				}
+			}
+			
+			for (ByteBuffer b : batch)
+			{
+				b.flip();
+				dirty = true;
+				while (b.hasRemaining())
+				{
+					log.write(b);
+				}
+				b.clear();
+			}
+			
+			synchronized (this)
+			{
+				for (ByteBuffer b : batch)
+				{
+					if (free.size() < BUFFERS)
+						free.add(b);
+				}
+			}
+			
+			if (force && dirty)
+			{
+				log.force(false);
+				dirty = false;
+				lastForce = System.currentTimeMillis();
+			}
+		}
+	}
+	
+	// Write every session to a new snapshot, then delete the logs it holds. The new log is started first, so the 
+	// decks stored while the segments are written are in the new log, which is replayed after the snapshot.
+	// Only one snapshot runs at a time, it holds no lock of the log while it holds the lock of a segment.
+	void snapshot() throws IOException
+	{
+		synchronized (snapshotting)
+		{
+			takeSnapshot();
+		}
+	}
+	
+	void takeSnapshot() throws IOException
+	{
+		long start = System.nanoTime();
+		long g;
+		synchronized (io)
+		{
+			write(true);
+			log.close();
+			g = ++generation;
+			log = openLog(g);
+		}
+		
+		Path tmp = dir.resolve("sessions.snap.tmp");
+		long count = 0;
+		int record = 16 + 8 * table.categories;
+		int most = table.segments[0].capacity * record; // The segments all hold as many sessions at most.
+		if (staging == null || staging.capacity() < most)
+			staging = ByteBuffer.allocateDirect(most);
+		try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, 
+				StandardOpenOption.WRITE))
+		{
+			// Each segment is copied in memory under its lock, and written once the requests may use it again.
+			long pos = HEADER + table.categories;
+			for (SessionSegment segment : table.segments)
+			{
+				staging.clear();
+				synchronized (segment)
+				{
+					count += segment.dump(staging, table.categories);
+				}
+				staging.flip();
+				pos += write(ch, staging, pos);
+			}
+			
+			ByteBuffer header = ByteBuffer.allocate(HEADER + table.categories);
+			header.putLong(MAGIC).putLong(g).putLong(count).putInt(table.categories).position(HEADER);
+			for (int c = 0; c < table.categories; c++)
+			{
+				header.put((byte) code(SessionTable.DECKS + 8 * c));
+			}
+			header.flip();
+			write(ch, header, 0);
+			ch.force(true);
+		}
+		Files.move(tmp, dir.resolve("sessions.snap"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		syncDirectory(); // The new snapshot must be found after a crash, before the logs it holds are deleted.
+		
+		TreeMap<Long, Path> logs = logs();
+		for (Long old : logs.headMap(g).keySet())
+		{
+			Files.delete(logs.get(old));
+		}
+		lastSnapshot = "last snapshot " + count + " sessions in " + (System.nanoTime() - start) / 1000000 + " ms";
+	}
+	
+	// Write the whole buffer at pos of the file, and return the number of bytes.
+	static int write(FileChannel ch, ByteBuffer b, long pos) throws IOException
+	{
+		int n = b.remaining();
+		while (b.hasRemaining())
+		{
+			pos += ch.write(b, pos);
+		}
+		return n;
+	}
+	
+	// Write the full buffers as soon as there are some, force the log every fsync ms, 
+	// and take a snapshot every snapshotSeconds.
+	public void run()
+	{
+		long next = System.currentTimeMillis() + (snapshotSoon? 0: snapshotSeconds * 1000L);
+		long nextForce = System.currentTimeMillis() + fsync;
+		while (true)
+		{
+			try
+			{
+				synchronized (this)
+				{
+					long left = nextForce - System.currentTimeMillis();
+					if (full.isEmpty() && left > 0)
+						wait(left);
+				}
+			}
+			catch (InterruptedException x) {return;}
+			try
+			{
+				boolean force = System.currentTimeMillis() >= nextForce;
+				write(force);
+				if (force)
+					nextForce = System.currentTimeMillis() + fsync;
+				if (System.currentTimeMillis() >= next)
+				{
+					snapshot();
+					next = System.currentTimeMillis() + snapshotSeconds * 1000L;
+				}
+			}
+			catch (IOException x)
+			{
+				Log.error("Session log error", x);
+			}
+		}
+	}
+	
+	// Called when the admin shuts the server down: a last snapshot, so the next start reads no log.
+	void shutdown()
+	{
+		try
+		{
+			snapshot();
+			Log.info("Sessions saved, " + lastSnapshot + ".");
+		}
+		catch (IOException x)
+		{
+			Log.error("Session snapshot error", x);
+		}
+	}
+	
+	// The figures of the persistence, added to the "SESSIONS" report.
+	String report()
+	{
+		long since = (lastForce == 0? -1: System.currentTimeMillis() - lastForce);
+		return "Kept in " + dir + ": log " + generation + ", " + logged.get() + " changes logged, " 
+				+ (since < 0? "not forced yet": "forced " + since + " ms ago") + ", " + lastSnapshot + ", " + recovered + ".";
+	}
+}
+
+// A deck is the seed of a random permutation of the catalog, item i of the deck is entry i of the permutation.
+// The permutation is a keyed Feistel network over the smallest even number of bits covering the catalog, 
+// walking its cycle until it lands inside the catalog. So the items of a deck never repeat, k items out of 
+// n take O(k) time whatever k and n are, nothing is allocated, and a deck is 8 bytes for any deck size.
+class Deck
+{
+	static final long NONE = -1L; // No deck yet, a drawn deck is never negative.
+	static final int ROUNDS = 12; // Rounds of the Feistel network, fewer rounds are measurably biased on small catalogs.
+	static final int STAMP_SHIFT = 55; // The top 8 bits of a deck hold the stamp of the catalog it was drawn for.
+	static final int STAMP_MASK = 0xFF;
+	
+	// Draw a new deck with the generator of the current thread, for a catalog with the given stamp.
+	static long draw(int stamp)
+	{
+		return (ThreadLocalRandom.current().nextLong() >>> (64 - STAMP_SHIFT)) | ((long) (stamp & STAMP_MASK) << STAMP_SHIFT);
+	}
+	
+	// The stamp of the catalog a deck was drawn for.
+	static int stamp(long deck)
+	{
+		return (int) (deck >>> STAMP_SHIFT) & STAMP_MASK;
+	}
+	
+	// The catalog index of item i of the deck, for a catalog of n entries, i must be less than n.
+	static int get(long deck, int i, int n)
+	{
+		int bits = Math.max(2, 32 - Integer.numberOfLeadingZeros(n - 1)); // Bits covering the catalog.
+		int half = (bits + 1) / 2;
+		int mask = (1 << half) - 1;
+		
+		// Indexes outside the catalog are permuted again, until one is inside. The cycle of i holds i, 
+		// so this ends, and since the domain is less than four times n it ends after a few steps.
+		// A catalog of more than 2^30 entries takes all 32 bits, so the indexes are compared unsigned.
+		int x = i;
+		do
+		{
+			x = permute(deck, x, half, mask);
+		}
+		while (Integer.compareUnsigned(x, n) >= 0);
+		return x;
+	}
+	
+	// One pass of the Feistel network over the 2 * half bits of x.
+	static int permute(long deck, int x, int half, int mask)
+	{
+		int left = x >>> half;
+		int right = x & mask;
+		for (int round = 0; round < ROUNDS; round++)
+		{
+			int f = (int) mix((deck + round * 0x9E3779B97F4A7C15L) ^ right) & mask;
+			int t = left ^ f;
+			left = right;
+			right = t;
+		}
+		return (left << half) | right;
+	}
+	
+	// The SplitMix64 finalizer, the round function of the network.
+	static long mix(long z)
+	{
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+}
+
+// The entries of a catalog, by index. A deck needs at least DECK entries, so that its items never repeat.
+// The UTF-8 entries lie one after the other out of the Java heap, so the replies are written straight from them.
+abstract class Catalog
+{
+	static final int DECK = 4; // Number of items in a deck.
+	static final int MAX_ENTRY = 0xFFFF - 2 - State.MAX; // Longest entry in bytes, a reply frame gives its length in 2 bytes.
+	
+	ByteBuffer data; // The entries, direct or mapped.
+	
+	// The decks drawn for this catalog carry its stamp (see Deck). A catalog which replaces another gets the next 
+	// stamp, so the decks drawn before start a new cycle on their next request. The stamp has 8 bits: a session 
+	// left alone across a multiple of 256 reloads keeps its deck, which then goes on over the new catalog, 
+	// a cycle which may repeat or skip a few items, once.
+	int stamp;
+	
+	// Number of entries.
+	abstract int size();
+	
+	// Where entry i starts in the data.
+	abstract int start(int i);
+	
+	// Where entry i ends in the data.
+	abstract int end(int i);
+	
+	// The UTF-8 bytes of entry i, as a view which shares the memory of the catalog.
+	ByteBuffer bytes(int i)
+	{
+		ByteBuffer b = data.duplicate();
+		b.limit(end(i));
+		b.position(start(i));
+		return b.slice();
+	}
+	
+	// Entry i as a string.
+	String get(int i)
+	{
+		return Frames.UTF8.decode(bytes(i)).toString();
+	}
+}
+
+// A catalog held in a string array, used for the built-in jokes and proverbs. 
+// The entries are encoded once, when the catalog is made.
+class ArrayCatalog extends Catalog
+{
+	String[] entries;
+	int[] offsets; // Entry i is the data between offsets i and i + 1.
+	
+	ArrayCatalog(String[] entries)
+	{
+		this.entries = entries;
+		byte[][] encoded = new byte[entries.length][];
+		offsets = new int[entries.length + 1];
+		for (int i = 0; i < entries.length; i++)
+		{
+			encoded[i] = entries[i].getBytes(Frames.UTF8);
+			if (encoded[i].length > MAX_ENTRY)
+				throw new IllegalArgumentException("Entry " + (i + 1) + " is " + encoded[i].length + " bytes, an entry holds " + MAX_ENTRY + " at most");
+			offsets[i + 1] = offsets[i] + encoded[i].length;
+		}
+		
+		data = ByteBuffer.allocateDirect(offsets[entries.length]);
+		for (int i = 0; i < entries.length; i++)
+		{
+			data.put(encoded[i]);
+		}
+		data.clear();
+	}
+	
+	int size() {return entries.length;}
+	
+	int start(int i) {return offsets[i];}
+	
+	int end(int i) {return offsets[i + 1];}
+	
+	String get(int i) {return entries[i];}
+}
+
+// A catalog file made by CatalogBuilder, mapped into memory, so a catalog of millions of entries loads at once 
+// and stays out of the Java heap. An entry is only turned into a string when it is sent.
+// The file holds a header (the MAGIC and the number of entries), an index of count + 1 offsets of 8 bytes, 
+// and the UTF-8 entries one after the other. Entry i is the data between offsets i and i + 1.
+class MappedCatalog extends Catalog
+{
+	static final long MAGIC = 0x4A4F4B4543415431L; // "JOKECAT1"
+	static final int HEADER = 16; // The magic, the number of entries and 4 unused bytes.
+	
+	int count; // Number of entries.
+	ByteBuffer index; // The offsets, mapped.
+	
+	// Map the catalog file.
+	static MappedCatalog open(String file) throws IOException
+	{
+		try (FileChannel ch = FileChannel.open(Paths.get(file), StandardOpenOption.READ))
+		{
+			MappedCatalog c = new MappedCatalog();
+			ByteBuffer header = ch.map(FileChannel.MapMode.READ_ONLY, 0, HEADER);
+			if (header.getLong(0) != MAGIC)
+				throw new IOException(file + " is not a catalog file");
+			c.count = header.getInt(8);
+			if (c.count < DECK)
+				throw new IOException(file + " holds " + c.count + " entries, a catalog needs at least " + DECK);
+			
+			long indexSize = 8L * (c.count + 1);
+			c.index = ch.map(FileChannel.MapMode.READ_ONLY, HEADER, indexSize);
+			long dataSize = c.index.getLong(8 * c.count);
+			if (dataSize > Integer.MAX_VALUE)
+				throw new IOException(file + " holds more than 2 GB of entries");
+			
+			// A file not made by CatalogBuilder may hold an entry too long for a reply frame, or offsets out of order.
+			for (int i = 0; i < c.count; i++)
+			{
+				long length = c.index.getLong(8 * (i + 1)) - c.index.getLong(8 * i);
+				if (length < 0 || length > MAX_ENTRY)
+					throw new IOException(file + " entry " + (i + 1) + " is " + length + " bytes, an entry holds " + MAX_ENTRY + " at most");
+			}
+			c.data = ch.map(FileChannel.MapMode.READ_ONLY, HEADER + indexSize, dataSize);
+			
+			Log.info("Mapped " + c.count + " entries of " + file + ".");
+			return c;
+		}
+	}
+	
+	int size() {return count;}
+	
+	int start(int i) {return (int) index.getLong(8 * i);}
+	
+	int end(int i) {return (int) index.getLong(8 * (i + 1));}
+}
+
+// Builds a catalog file out of a text file with one entry per line, or out of a CSV file.
+//	> java CatalogBuilder jokes.txt jokes.cat
+//	> java CatalogBuilder -column=2 quotes.csv quotes.cat
+// With a CSV file (its name ends with .csv), each row gives the entry in the chosen column, the last one 
+// by default, and fields may be quoted with "" for a quote inside. Empty lines are skipped. An entry longer 
+// than Catalog.MAX_ENTRY bytes (about 64 KB) stops the build, since a reply frame could not give its length.
+class CatalogBuilder
+{
+	public static void main(String args[]) throws IOException
+	{
+		int column = -1; // The CSV column of the entries, -1 for the last one.
+		ArrayList<String> files = new ArrayList<>();
+		for (String arg : args)
+		{
+			if (arg.startsWith("-column="))
+				column = Integer.parseInt(arg.substring("-column=".length())) - 1;
+			else
+				files.add(arg);
+		}
+		if (files.size() != 2)
+		{
+			System.out.println("Usage: java CatalogBuilder [-column=N] source.txt|source.csv catalog.cat");
+			return;
+		}
+		
+		int count = build(files.get(0), files.get(1), files.get(0).toLowerCase().endsWith(".csv"), column);
+		System.out.println("Wrote " + count + " entries to " + files.get(1) + ".");
+	}
+	
+	// Write the entries of the source to the catalog file, and return their number.
+	static int build(String source, String target, boolean csv, int column) throws IOException
+	{
+		// The entries go to a temporary file while their offsets are collected, then the header, 
+		// the index and the entries are written one after the other.
+		File tmp = File.createTempFile("catalog", ".dat", new File(target).getAbsoluteFile().getParentFile());
+		long[] offsets = new long[1024];
+		int count = 0;
+		long offset = 0;
+		
+		try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(source), Frames.UTF8));
+			 OutputStream data = new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))
+		{
+			String line;
+			while ((line = in.readLine()) != null)
+			{
+				String entry = (csv? field(line, column): line).trim();
+				if (entry.isEmpty())
+					continue;
+				
+				byte[] b = entry.getBytes(Frames.UTF8);
+				if (b.length > Catalog.MAX_ENTRY) // The replies could not give its length.
+					throw new IOException("Entry " + (count + 1) + " of " + source + " is " + b.length + " bytes, an entry holds " + Catalog.MAX_ENTRY + " at most");
+				data.write(b);
+				if (count + 1 >= offsets.length)
+					offsets = Arrays.copyOf(offsets, offsets.length * 2);
+				offsets[count++] = offset;
+				offset += b.length;
+			}
+			offsets[count] = offset;
+		}
+		catch (IOException x)
+		{
+			tmp.delete(); // Nothing is written to the target.
+			throw x;
+		}
+		
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(target), 1 << 16));
+			 InputStream data = new FileInputStream(tmp))
+		{
+			out.writeLong(MappedCatalog.MAGIC);
+			out.writeInt(count);
+			out.writeInt(0);
+			for (int i = 0; i <= count; i++)
+			{
+				out.writeLong(offsets[i]);
+			}
+			byte[] buf = new byte[1 << 16];
+			int n;
+			while ((n = data.read(buf)) > 0)
+			{
+				out.write(buf, 0, n);
+			}
+		}
+		finally
+		{
+			tmp.delete();
+		}
+		return count;
+	}
+	
+	// The field of a CSV line at the column, -1 for the last one. A field may be quoted, with "" for a quote.
+	static String field(String line, int column)
+	{
+		ArrayList<String> fields = new ArrayList<>();
+		StringBuilder sb = new StringBuilder();
+		boolean quoted = false;
+		for (int i = 0; i < line.length(); i++)
+		{
+			char c = line.charAt(i);
+			if (quoted)
+			{
+				if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"')
+				{
+					sb.append('"');
+					i++;
+				}
+				else if (c == '"')
+					quoted = false;
+				else
+					sb.append(c);
+			}
+			else if (c == '"')
+				quoted = true;
+			else if (c == ',')
+			{
+				fields.add(sb.toString());
+				sb.setLength(0);
+			}
+			else
+				sb.append(c);
+		}
+		fields.add(sb.toString());
+		
+		int i = (column < 0? fields.size() - 1: column);
+		return (i < fields.size()? fields.get(i): "");
+	}
+}
+
+// A thread class to enable the connections and executions of admin clients.
+class AdminThread implements Runnable 
+{	
+	  public static int port = JokeServer.adminPort; // The default port for admin client
+	  int listenPort = JokeServer.adminPort; // The port this thread listens at.
+	  
+	  AdminThread(){} // constructor.
+	    
+	  AdminThread(int newPort) // constructor with specified port number as an argument. 
+	  {
+		  port = newPort;
+		  listenPort = newPort;
+	  }
+
+	  public void run() 
+	  { 	        
+		  // wait for the connections requested from admin clients, they do not count against the client admission.
+		  new Listener(listenPort, AdminWorker::new, false).run();
+	  }
+}
+
+// An admin worker thread to run the admin clients.
+class AdminWorker implements Runnable 
+{
+	Socket sock; // A local socket object sock.
+	AdminWorker (Socket s) {sock = s;} // Assign s to sock when this constructor is called.
+
+	ByteArrayOutputStream frame; // Collects the reply to a binary admin client, null for a text admin client.
+
+	public void run()
+	{
+		PrintStream out = null; 
+		BufferedReader in = null; 
+		
+		// Print out that the admin client has been connected.
+		Log.info("AdminClient connected at port " + AdminThread.port + ".");
+
+		try
+		{
+			// Peek at the first byte, a binary admin client starts with the admin frame marker.
+			InputStream raw = new BufferedInputStream(sock.getInputStream());
+			raw.mark(1);
+			if (raw.read() == Frames.ADMIN)
+			{
+				// The reply is collected, then sent back in one frame.
+				frame = new ByteArrayOutputStream();
+				out = new PrintStream(frame, true, "UTF-8");
+			}
+			else
+			{
+				raw.reset();
+				
+				// Get the command send by the admin client.
+				in = new BufferedReader(new InputStreamReader(raw));
+				
+				// Print out the message to show on the console of admin client.
+				out = new PrintStream(sock.getOutputStream());
+			}
+
+			try
+			{				
+				// Get the command sent by the admin.
+				String command = (frame != null? Frames.readText(new DataInputStream(raw)): in.readLine()); 
+				
+				// Report commands only send information back, they never change the server mode.
+				String report = report(command);
+				if (report != null)
+				{
+					out.println(report);
+					sendFrame();
+					sock.close();
+					return;
+				}
+				
+				// If the command is 'shutdown', print a message and notify the admin, then close the server. 
+				if("SHUTDOWN".equals(command))
+				{
+					Log.info("Shut down by the Admin Client. Closing...");
+					out.println("Server has been shut down.");
+					sendFrame();
+					if (JokeServer.sessions.log != null) // Keep the sessions for the next start.
+						JokeServer.sessions.log.shutdown();
+					Log.flush();
+					System.exit(0);
+				}
+				
+				// If the command is 's', which means the admin now is connecting to both ports of this server.
+				// Change the current port to the other port, and print out summary message both on console and to the admin.
+				else if ("S".equals(command))
+				{
+					AdminThread.port = ((AdminThread.port == JokeServer.adminPort + 1)? JokeServer.adminPort: JokeServer.adminPort + 1); // Switch the port.
+					Log.info("Admin Client now is switched to using port " + AdminThread.port + ".\n");
+					out.println("Server port switched to " + AdminThread.port + ".");			
+				}
+				
+				// "REGISTER code label file [deck]" adds a category, or gives a new catalog to an existing one.
+				else if (command != null && command.startsWith("REGISTER "))
+				{
+					out.println(register(command.substring("REGISTER ".length()).trim()));
+				}
+				
+				// "RELOAD code file" replaces the catalog of a category while the server runs.
+				else if (command != null && command.startsWith("RELOAD "))
+				{
+					out.println(reload(command.substring("RELOAD ".length()).trim()));
+				}
+				
+				// "ENABLE code" and "DISABLE code" choose which categories the mode may be switched to.
+				else if (command != null && (command.startsWith("ENABLE ") || command.startsWith("DISABLE ")))
+				{
+					boolean enable = command.startsWith("ENABLE ");
+					Category category = Category.of(command.substring(command.indexOf(' ') + 1).trim());
+					
+					if (category == null)
+					{
+						out.println("Unknown category in " + command + ".");
+					}
+					else
+					{
+						boolean current;
+						synchronized (ModeRegistry.admin)
+						{
+							current = (!enable && category == ModeRegistry.get().mode);
+							if (!current)
+								category.enabled = enable;
+						}
+						
+						if (current)
+						{
+							out.println("The " + category.label + " category is the current mode, it stays enabled.");
+						}
+						else
+						{
+							Log.info("The " + category.label + " category is now " + (enable? "enabled.": "disabled."));
+							out.println("The " + category.label + " category is now " + (enable? "enabled.": "disabled."));
+						}
+					}
+				}
+				
+				// If the command is the code of a category, such as P or J, switch to that category. 
+				// Any other command is refused, and the mode stays as it is.
+				else
+				{	
+					Category mode = Category.of(command);
+					boolean enabled = false, changed = false;
+					if (mode != null)
+					{
+						synchronized (ModeRegistry.admin)
+						{
+							enabled = mode.enabled;
+							changed = (enabled && ModeRegistry.set(mode));
+						}
+					}
+					
+					if (mode == null)
+					{
+						out.println("Unknown command " + command + ", the mode is unchanged.");
+					}
+					
+					// A disabled category can not be chosen until it is enabled again.
+					else if (!enabled)
+					{
+						out.println("The " + mode.label + " category is disabled, the mode is unchanged.");
+					}
+					
+					// If the server is already on the demanded mode, notify the admin that nothing needs to be changed.
+					else if (!changed)
+					{
+						out.println("Currently on this mode, no need to change.");
+					}
+					
+					// Print summary message indicating the current mode the server is on.
+					else
+					{
+						Log.info("Server Mode has been changed, now it is on " + mode.label + " Mode.\n");
+						out.println("Server Mode has been changed, now it is on " + mode.label + " Mode.");
+					}
+				}
+				
+				sendFrame();
+			}
+
+			/* If anything goes wrong, keep the program running by catch the exception 
+			and print out the error message.
+			*/
+			catch(IOException x) 
+			{
+				Log.error("Server read error", x);
+			}
+
+			sock.close(); // Close this socket.
+		}
+		catch(IOException ioe)
+		{
+			Log.error(ioe.toString());
+		}
+	}
+	
+	// Send the collected reply to a binary admin client in one frame.
+	void sendFrame() throws IOException
+	{
+		if (frame == null)
+			return;
+		OutputStream os = sock.getOutputStream();
+		os.write(Frames.text(new String(frame.toByteArray(), Frames.UTF8).trim()));
+		os.flush();
+	}
+	
+	// Load the catalog of a "REGISTER code label file [deck]" command, and add the category.
+	// A ".cat" file built by CatalogBuilder is mapped, any other file is read as text, one entry per line.
+	static String register(String args)
+	{
+		String[] parts = args.split("\\s+");
+		if (parts.length < 3)
+			return "Usage: REGISTER code label file [deck]";
+		
+		try
+		{
+			Catalog catalog = load(parts[2]);
+			String code = parts[0].toUpperCase();
+			int deck = (parts.length > 3? Integer.parseInt(parts[3]): Catalog.DECK);
+			String error = Category.register(code, parts[1], catalog, deck);
+			if (error != null)
+				return error;
+			
+			Category category = Category.of(code);
+			Log.info("Registered the " + category.label + " category " + code + ", " + catalog.size() + " entries in decks of " + category.deck + ".");
+			return "Registered the " + category.label + " category " + code + ", " + catalog.size() + " entries in decks of " + category.deck + ".";
+		}
+		catch (IOException | RuntimeException x)
+		{
+			return "Could not register " + args + ": " + x;
+		}
+	}
+	
+	// Load the catalog of a "RELOAD code file" command, and publish it in place of the catalog of the category. 
+	// The file is read by this admin thread while the requests go on with the old catalog, which is only replaced 
+	// once the new one is complete. A ".cat" file stays mapped while it is used, so a new catalog file must be 
+	// built under another name, and not over the one in use.
+	static String reload(String args)
+	{
+		String[] parts = args.split("\\s+");
+		if (parts.length != 2)
+			return "Usage: RELOAD code file";
+		Category category = Category.of(parts[0].toUpperCase());
+		if (category == null)
+			return "Unknown category " + parts[0] + ", see REGISTER.";
+		
+		try
+		{
+			long start = System.nanoTime();
+			Catalog catalog = load(parts[1]);
+			if (catalog.size() < Catalog.DECK)
+				return "A catalog needs at least " + Catalog.DECK + " entries.";
+			int before = category.catalog().size();
+			category.publish(catalog);
+			
+			String done = "Reloaded the " + category.label + " category from " + parts[1] + ", " + catalog.size() + " entries instead of " + before 
+					+ " in " + (System.nanoTime() - start) / 1000000 + " ms, the decks start a new cycle.";
+			Log.info(done);
+			return done;
+		}
+		catch (IOException | RuntimeException x)
+		{
+			return "Could not reload " + args + ": " + x;
+		}
+	}
+	
+	// Load a catalog: a ".cat" file built by CatalogBuilder is mapped, any other file is read as text, one entry per line.
+	static Catalog load(String file) throws IOException
+	{
+		if (file.endsWith(".cat"))
+			return MappedCatalog.open(file);
+		
+		ArrayList<String> lines = new ArrayList<>();
+		for (String line : Files.readAllLines(Paths.get(file), Frames.UTF8))
+		{
+			if (!line.trim().isEmpty())
+				lines.add(line.trim());
+		}
+		return new ArrayCatalog(lines.toArray(new String[0]));
+	}
+	
+	// Return the answer to a report command, or null if the command is not one.
+	static String report(String command)
+	{
+		if ("POOL".equals(command)) // The load of the worker pool and the accept loops.
+			return Launcher.report();
+		if ("SESSIONS".equals(command)) // The size and the evictions of the session table.
+			return JokeServer.sessions.report();
+		if ("LOG".equals(command)) // The settings of the log and the events it dropped.
+			return Log.report();
+		if ("CATEGORIES".equals(command)) // The categories, their catalogs and which one is the mode.
+			return Category.report();
+		if ("CLUSTER".equals(command)) // The nodes of the cluster, and the requests and decks sent between them.
+			return Cluster.report();
+		if ("STATS".equals(command)) // A snapshot of the metrics, as name=value pairs.
+			return Metrics.report();
+		if ("HEALTH".equals(command)) // Whether the server is ready to serve requests.
+			return Metrics.health();
+		if ("MODE".equals(command)) // The current mode, and how many times it changed.
+		{
+			ModeSnapshot now = ModeRegistry.get();
+			return now.mode.label + " Mode, changed " + now.epoch + " times since the server started.";
+		}
+		return null;
+	}
+}
+
+// A second worker class to run the secondary server which is listening at port 4546, or after "-port=".
+class SecondWorker implements Runnable 
+{	  
+	  public void run()
+	  {
+		  
+	    int port = JokeServer.port + 1;  
+	    
+	    // With the non-blocking engine, the secondary port gets its own event loops.
+	    if (JokeServer.engine.equals("nio"))
+	    {
+	    	new NioServer(port, JokeServer.backlog).run();
+	    	return;
+	    }
+
+	    new Listener(port, Worker::new, true).run();
+	  }
+}
+
+
+// The non-blocking server engine, chosen by "-engine=nio". One thread accepts the connections and hands 
+// them over to a small fixed set of event loops, so a connect storm no longer creates a thread per socket.
+// Like the Listener, it waits for an admission permit of the Launcher before each accept.
+class NioServer implements Runnable
+{
+	int port; // The port this engine listens at.
+	int q_len; // Maximum requests waiting to be accepted.
+	
+	NioServer(int port, int q_len) // Assign the port and the queue length when this constructor is called.
+	{
+		this.port = port;
+		this.q_len = q_len;
+	}
+	
+	public void run()
+	{
+		try
+		{
+			// Start the event loops, each one owns a selector and the connections registered with it.
+			NioLoop[] loops = new NioLoop[JokeServer.loops];
+			for (int i = 0; i < loops.length; i++)
+			{
+				loops[i] = new NioLoop();
+				Thread t = new Thread(loops[i], "nio-loop-" + port + "-" + i);
+				t.start();
+			}
+			
+			// Bind the listening channel, it stays blocking so this thread simply waits for connections.
+			ServerSocketChannel server = ServerSocketChannel.open();
+			server.socket().bind(new InetSocketAddress(port), q_len);
+			Metrics.ports.incrementAndGet();
+			
+			int next = 0; // Used to give the connections to the loops one after the other.
+			while (true)
+			{
+				// Wait until the server has room for one more connection, its permit is given back when it is closed.
+				Launcher.admit();
+				SocketChannel ch;
+				try
+				{
+					ch = server.accept();
+				}
+				catch (IOException ioe)
+				{
+					Launcher.release();
+					throw ioe;
+				}
+				finally
+				{
+					Launcher.accepting.decrementAndGet();
+				}
+				Metrics.accepted.increment();
+				Metrics.connections.increment();
+				loops[next].register(ch);
+				next = (next + 1) % loops.length;
+			}
+		}
+		catch (IOException ioe) {Log.error(ioe.toString());}
+	}
+}
+
+// An event loop of the non-blocking engine. It reads the "ID\nstate\n" requests of each connection 
+// without blocking, and writes back the three lines of each reply without blocking.
+class NioLoop implements Runnable
+{
+	// The replies are encoded with the same charset as the catalogs and the Worker threads.
+	static final Charset charset = Frames.UTF8;
+	
+	// The replies of the requests forwarded to another node of a cluster are built by the forwarder threads.
+	static final ThreadLocal<Reply> forwarded = ThreadLocal.withInitial(Reply::new);
+	
+	Selector selector; // The selector of this loop.
+	ConcurrentLinkedQueue<SocketChannel> pending = new ConcurrentLinkedQueue<>(); // Accepted but not yet registered channels.
+	ConcurrentLinkedQueue<Runnable> later = new ConcurrentLinkedQueue<>(); // Work handed back to the loop thread by other threads.
+	long lastSweep = System.currentTimeMillis(); // The last time the idle connections were closed.
+	
+	NioLoop() throws IOException {selector = Selector.open();}
+	
+	// Called by the accepting thread, the channel is registered by the loop thread itself.
+	void register(SocketChannel ch)
+	{
+		pending.add(ch);
+		selector.wakeup();
+	}
+	
+	public void run()
+	{
+		while (true)
+		{
+			try
+			{
+				selector.select(1000); // Wake up at least once a second to close the idle connections.
+				
+				// Register the channels accepted since the last select.
+				SocketChannel ch;
+				while ((ch = pending.poll()) != null)
+				{
+					try
+					{
+						ch.configureBlocking(false);
+						ch.register(selector, SelectionKey.OP_READ, new NioConn());
+					}
+					catch (IOException ioe) {close(ch);}
+				}
+				
+				// Write the replies which came back from the forwarder threads.
+				Runnable task;
+				while ((task = later.poll()) != null)
+				{
+					task.run();
+				}
+				
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext())
+				{
+					SelectionKey key = it.next();
+					it.remove();
+					
+					try
+					{
+						if (key.isReadable())
+							read(key);
+						else if (key.isValid() && key.isWritable())
+							write(key);
+					}
+					
+					// If anything goes wrong with one connection, close it and keep the loop running.
+					catch (IOException | RuntimeException x)
+					{
+						Log.error("Server read error " + x);
+						key.cancel();
+						close((SocketChannel) key.channel());
+					}
+				}
+				
+				sweep();
+			}
+			catch (IOException ioe) {Log.error(ioe.toString());}
+		}
+	}
+	
+	// Close the connections which have been idle longer than the idle timeout.
+	void sweep()
+	{
+		long now = System.currentTimeMillis();
+		if (now - lastSweep < 1000)
+			return;
+		lastSweep = now;
+		
+		for (SelectionKey key : selector.keys())
+		{
+			NioConn conn = (NioConn) key.attachment();
+			if (conn != null && now - conn.lastActive > JokeServer.idleSeconds * 1000L)
+			{
+				Log.debug("Closed an idle connection.");
+				key.cancel();
+				close((SocketChannel) key.channel());
+			}
+		}
+	}
+	
+	// Read what is available, and build the reply of every request which has fully arrived.
+	void read(SelectionKey key) throws IOException
+	{
+		SocketChannel ch = (SocketChannel) key.channel();
+		NioConn conn = (NioConn) key.attachment();
+		
+		if (ch.read(conn.in) < 0) // The client closed the connection.
+		{
+			key.cancel();
+			close(ch);
+			return;
+		}
+		conn.lastActive = System.currentTimeMillis();
+		
+		// A binary client starts with the frame marker, its connection stays open for many frames.
+		if (!conn.started && conn.in.position() > 0 && (conn.in.get(0) & 0xFF) == Frames.REQUEST)
+		{
+			conn.started = true;
+			conn.binary = true;
+			conn.keepAlive = true;
+		}
+		serve(key);
+	}
+	
+	// Build the reply of every request of the buffer, in order. The request of a client whose session is kept 
+	// by another node of a cluster is handed to a forwarder thread (see forward), the loop never waits for a node: 
+	// the connection stops reading until its reply comes back, then its next requests are served.
+	void serve(SelectionKey key) throws IOException
+	{
+		SocketChannel ch = (SocketChannel) key.channel();
+		NioConn conn = (NioConn) key.attachment();
+		
+		byte[] body;
+		while (conn.binary && !conn.forwarding && (body = conn.readFrame()) != null)
+		{
+			// Same processing as the Worker threads, the reply frame is written straight from the catalog.
+			long start = System.nanoTime();
+			if (Cluster.remote(Frames.getLong(body, 0), Frames.getLong(body, 8), Token.key != null && body.length != Frames.REQUEST_BODY))
+			{
+				final byte[] frame = body;
+				forward(key, Metrics.binary, start, reply -> {
+					Worker.answerFrame(frame, frame.length, reply);
+					return reply.frame();
+				});
+				break;
+			}
+			Worker.answerFrame(body, body.length, conn.reply);
+			send(ch, conn, conn.reply.frame());
+			Metrics.request(Metrics.binary, start);
+		}
+		
+		while (!conn.binary && !conn.done && !conn.forwarding)
+		{
+			String ID = conn.readLine(); 
+			if (ID == null) // The ID line is not complete yet.
+				break;
+			
+			// The first line of a version 2 client only opts in to keep the connection open.
+			if (!conn.started)
+			{
+				conn.started = true;
+				if (JokeServer.HELLO_V2.equals(ID))
+				{
+					conn.keepAlive = true;
+					continue;
+				}
+			}
+			
+			String state = conn.readLine();
+			if (state == null) // The state line is not complete yet, keep the ID for the next read.
+			{
+				conn.unread(ID);
+				break;
+			}
+			conn.done = !conn.keepAlive; // Older clients send a single request.
+			
+			// Same processing as the Worker threads, a state followed by a number asks for a batch of items.
+			final long msb = SessionTable.msb(ID);
+			final long lsb = SessionTable.lsb(ID);
+			final String id = ID;
+			int space = state.indexOf(' ');
+			long start = System.nanoTime();
+			if (space < 0)
+			{
+				final String single = state.trim();
+				if (Cluster.remote(msb, lsb, single))
+				{
+					forward(key, Metrics.text, start, reply -> {
+						Worker.answer(msb, lsb, single, reply);
+						return reply.lines();
+					});
+					break;
+				}
+				Worker.answer(msb, lsb, single, conn.reply);
+				send(ch, conn, conn.reply.lines());
+				Metrics.request(Metrics.text, start);
+			}
+			else
+			{
+				final String first = state.substring(0, space);
+				final int max = Integer.parseInt(state.substring(space + 1).trim());
+				if (Cluster.remote(msb, lsb, first))
+				{
+					forward(key, Metrics.batches, start, reply -> batch(id, first, max));
+					break;
+				}
+				send(ch, conn, batch(id, first, max));
+				Metrics.request(Metrics.batches, start);
+			}
+		}
+		
+		// While a request is forwarded nothing is read, and only the replies before it are written. Otherwise 
+		// wait for the socket to be writable for what it did not take, close a finished connection, or read on.
+		if (conn.forwarding)
+		{
+			key.interestOps(conn.out.isEmpty()? 0: SelectionKey.OP_WRITE);
+		}
+		else if (!conn.out.isEmpty())
+		{
+			key.interestOps(SelectionKey.OP_WRITE);
+		}
+		else if (conn.done)
+		{
+			key.cancel();
+			close(ch);
+		}
+		else
+		{
+			key.interestOps(SelectionKey.OP_READ);
+		}
+	}
+	
+	// The reply to a batch request, all its lines encoded at once.
+	static ByteBuffer[] batch(String id, String state, int max)
+	{
+		String[] reply = Worker.answerBatch(id, state, max);
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < reply.length; i++)
+		{
+			sb.append(reply[i]).append('\n');
+		}
+		return new ByteBuffer[] {ByteBuffer.wrap(sb.toString().getBytes(charset))};
+	}
+	
+	// Build the reply of the request on a forwarder thread, which waits for the owner of the client, and hand it 
+	// back to this loop. The parts of the reply are copied, since the Reply of the thread is reused.
+	void forward(final SelectionKey key, final LongAdder kind, final long start, final Function<Reply, ByteBuffer[]> request)
+	{
+		NioConn conn = (NioConn) key.attachment();
+		conn.forwarding = true;
+		Cluster.forwarders.execute(() -> {
+			ByteBuffer reply = null;
+			try
+			{
+				reply = copy(request.apply(forwarded.get()));
+			}
+			catch (RuntimeException x) // A bad state, the connection is closed.
+			{
+				Log.error("Server read error " + x);
+			}
+			final ByteBuffer done = reply;
+			later.add(() -> finish(key, done, kind, start));
+			selector.wakeup();
+		});
+	}
+	
+	// Back on the loop thread: write the reply of a forwarded request, then serve the next requests of the connection.
+	void finish(SelectionKey key, ByteBuffer reply, LongAdder kind, long start)
+	{
+		NioConn conn = (NioConn) key.attachment();
+		conn.forwarding = false;
+		if (!key.isValid()) // Closed meanwhile, by the idle sweep.
+			return;
+		
+		SocketChannel ch = (SocketChannel) key.channel();
+		try
+		{
+			if (reply == null)
+				throw new IOException("Request failed");
+			send(ch, conn, new ByteBuffer[] {reply});
+			Metrics.request(kind, start);
+			serve(key);
+		}
+		catch (IOException | RuntimeException x)
+		{
+			Log.error("Server read error " + x);
+			key.cancel();
+			close(ch);
+		}
+	}
+	
+	// Write a reply at once, unless older replies are still waiting. What the socket does not take is copied, 
+	// since the parts of a Reply are reused by the next request, and written when the socket is writable.
+	void send(SocketChannel ch, NioConn conn, ByteBuffer[] parts) throws IOException
+	{
+		if (conn.out.isEmpty())
+			ch.write(parts);
+		
+		ByteBuffer copy = copy(parts);
+		if (copy.hasRemaining())
+			conn.out.add(copy);
+	}
+	
+	// The bytes left in the parts, in one buffer.
+	static ByteBuffer copy(ByteBuffer[] parts)
+	{
+		int left = 0;
+		for (ByteBuffer b : parts)
+		{
+			left += b.remaining();
+		}
+		ByteBuffer copy = ByteBuffer.allocate(left);
+		for (ByteBuffer b : parts)
+		{
+			copy.put(b);
+		}
+		copy.flip();
+		return copy;
+	}
+	
+	// Write the pending replies, once they are all sent either close the connection, 
+	// or wait for the next requests of a version 2 client.
+	void write(SelectionKey key) throws IOException
+	{
+		SocketChannel ch = (SocketChannel) key.channel();
+		NioConn conn = (NioConn) key.attachment();
+		
+		while (!conn.out.isEmpty())
+		{
+			ch.write(conn.out.peek());
+			if (conn.out.peek().hasRemaining())
+				return;
+			conn.out.poll();
+		}
+		
+		if (conn.forwarding) // The replies after it come once it is back.
+		{
+			key.interestOps(0);
+		}
+		else if (conn.done)
+		{
+			key.cancel();
+			close(ch);
+		}
+		else
+		{
+			key.interestOps(SelectionKey.OP_READ);
+		}
+	}
+	
+	static void close(SocketChannel ch)
+	{
+		if (!ch.isOpen()) // Closed once only, its admission permit is given back once.
+			return;
+		Metrics.connections.decrement();
+		Launcher.release();
+		try {ch.close();}
+		catch (IOException ioe) {Log.error(ioe.toString());}
+	}
+}
+
+// The state of one connection of the non-blocking engine: the bytes read so far and the reply to write.
+class NioConn
+{
+	static final int MAX_LINE = 1024; // A request line longer than this is treated as an error.
+	
+	// Bytes read from the client, in write mode: room for the longest line, or for the longest request frame.
+	ByteBuffer in = ByteBuffer.allocate(Math.max(MAX_LINE, 3 + Frames.MAX_BODY));
+	ArrayDeque<ByteBuffer> out = new ArrayDeque<>(); // The encoded replies not written yet, in order.
+	Reply reply = new Reply(); // Reused for the single requests of this connection.
+	String held; // A line already taken out of the buffer, but not used yet.
+	boolean started; // True once the first line or the first frame marker has been read.
+	boolean binary; // True for a binary client, which sends request frames instead of lines.
+	boolean keepAlive; // True for a version 2 client, which sends many requests over this connection.
+	boolean done; // True once no more requests will be served on this connection.
+	boolean forwarding; // True while a request waits for another node of the cluster, the next ones wait for it.
+	long lastActive = System.currentTimeMillis(); // The last time the client sent something.
+	
+	// Take the next complete line out of the buffer, or return null if the line has not fully arrived.
+	String readLine() throws IOException
+	{
+		if (held != null)
+		{
+			String line = held;
+			held = null;
+			return line;
+		}
+		
+		for (int i = 0; i < in.position(); i++)
+		{
+			if (in.get(i) == '\n')
+			{
+				int end = (i > 0 && in.get(i - 1) == '\r')? i - 1: i; // Accept both \n and \r\n endings.
+				String line = new String(in.array(), 0, end, NioLoop.charset);
+				
+				// Move the remaining bytes to the front of the buffer.
+				in.flip();
+				in.position(i + 1);
+				in.compact();
+				return line;
+			}
+		}
+		
+		if (!in.hasRemaining()) // The buffer is full and there is still no end of line.
+			throw new IOException("Request line too long");
+		return null;
+	}
+	
+	// Take the body of the next complete request frame out of the buffer, or return null if it has not fully arrived.
+	byte[] readFrame() throws IOException
+	{
+		if (in.position() < 3)
+			return null;
+		
+		int length = ((in.get(1) & 0xFF) << 8) | (in.get(2) & 0xFF);
+		if ((in.get(0) & 0xFF) != Frames.REQUEST || length < Frames.UUID_BODY || length > Frames.MAX_BODY)
+			throw new IOException("Bad request frame");
+		if (in.position() < 3 + length)
+		{
+			if (!in.hasRemaining()) // The buffer is full and the frame can still not be read, never wait for it.
+				throw new IOException("Request frame too long");
+			return null;
+		}
+		
+		byte[] body = new byte[length];
+		in.flip();
+		in.position(3);
+		in.get(body);
+		in.compact();
+		return body;
+	}
+	
+	// Keep a line which was read too early, so that the next readLine() returns it.
+	void unread(String line) {held = line;}
+}
+
+
+// The server log. The Worker threads and the event loops never print themselves: they put an event into a 
+// bounded ring buffer without taking a lock, and one background thread takes the events out, formats them, 
+// and writes them to the console and to the binary access log, if one is open. When the ring is full the 
+// event is dropped and counted, so a busy server never waits for its console.
+// A message is printed when its level is at most "-log=" (error, info or debug, info by default), and the 
+// line of a request is printed for one request in "-sample=" (every request by default). The access log 
+// given by "-accesslog=" gets a record of every request, whatever the level and the sampling.
+class Log implements Runnable
+{
+	static final int ERROR = 0, INFO = 1, DEBUG = 2; // The levels.
+	static final int MESSAGE = 0, REQUEST = 1, REQUEST_PRINTED = 2; // The kinds of events.
+	static final long MAGIC = 0x4A4F4B454C4F4731L; // "JOKELOG1", the start of an access log file.
+	
+	// An access log record: the time in milliseconds, the client's UUID, the index of the joke/proverb, 
+	// the number of items of the deck sent, the mode and 7 unused bytes.
+	static final int RECORD = 40;
+	static final byte[] UNUSED = new byte[7];
+	
+	static int level = INFO; // The highest level printed.
+	static int sample = 1; // One request line in sample is printed.
+	static int capacity = 8192; // Number of slots of the ring, rounded up to a power of two.
+	static String accessFile = null; // The access log file, null for none.
+	
+	static int mask; // Capacity - 1, turns a position into a slot.
+	static AtomicLongArray turn; // Slot i is free for position p when its turn is p, and filled when it is p + 1.
+	static final AtomicLong tail = new AtomicLong(); // The next position to be claimed.
+	static volatile long head; // The next position to be taken out, only moved by the log thread.
+	static volatile long flushed; // Every event before this position is written out.
+	static final AtomicLong dropped = new AtomicLong(); // Events dropped because the ring was full.
+	
+	// The events, one entry of each array per slot.
+	static int[] kind;
+	static int[] levels;
+	static long[] time;
+	static long[] msb;
+	static long[] lsb;
+	static int[] item;
+	static int[] state;
+	static String[] text; // The message.
+	static Category[] modes; // The mode of a request.
+	static Throwable[] cause;
+	
+	static PrintStream out; // The console, buffered, only used by the log thread. Set before init to print elsewhere.
+	static FileChannel access; // The access log, null for none.
+	static ByteBuffer records; // Access log records not written yet.
+	
+	// Make the ring, open the access log and start the log thread.
+	static void init() throws IOException
+	{
+		int n = 2;
+		while (n < capacity)
+		{
+			n <<= 1;
+		}
+		capacity = n;
+		mask = n - 1;
+		turn = new AtomicLongArray(n);
+		for (int i = 0; i < n; i++)
+		{
+			turn.set(i, i);
+		}
+		kind = new int[n];
+		levels = new int[n];
+		time = new long[n];
+		msb = new long[n];
+		lsb = new long[n];
+		item = new int[n];
+		state = new int[n];
+		text = new String[n];
+		modes = new Category[n];
+		cause = new Throwable[n];
+		
+		if (out == null)
+			out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16), false);
+		if (accessFile != null)
+		{
+			access = FileChannel.open(Paths.get(accessFile), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+			records = ByteBuffer.allocateDirect(RECORD * 1024);
+			if (access.size() == 0)
+				records.putLong(MAGIC);
+		}
+		
+		Thread t = new Thread(new Log(), "log");
+		t.setDaemon(true);
+		t.start();
+	}
+	
+	static void error(String message) {message(ERROR, message, null);}
+	
+	static void error(String message, Throwable x) {message(ERROR, message, x);}
+	
+	static void info(String message) {message(INFO, message, null);}
+	
+	static void debug(String message) {message(DEBUG, message, null);}
+	
+	// Log a message, and the stack trace of x if it is not null.
+	static void message(int lvl, String message, Throwable x)
+	{
+		if (lvl == ERROR)
+			Metrics.errors.increment(); // Counted even when the ring is full.
+		if (lvl > level)
+			return;
+		long pos = claim();
+		if (pos < 0)
+			return;
+		int i = (int) pos & mask;
+		kind[i] = MESSAGE;
+		levels[i] = lvl;
+		text[i] = message;
+		cause[i] = x;
+		turn.lazySet(i, pos + 1);
+	}
+	
+	// Log the joke/proverb sent to a client. Nothing is allocated, the line is made by the log thread.
+	static void request(long clientMsb, long clientLsb, Category mode, int index, int sent)
+	{
+		boolean printed = level >= INFO && (sample == 1 || ThreadLocalRandom.current().nextInt(sample) == 0);
+		if (!printed && access == null)
+			return;
+		long pos = claim();
+		if (pos < 0)
+			return;
+		int i = (int) pos & mask;
+		kind[i] = (printed? REQUEST_PRINTED: REQUEST);
+		time[i] = System.currentTimeMillis();
+		msb[i] = clientMsb;
+		lsb[i] = clientLsb;
+		modes[i] = mode;
+		item[i] = index;
+		state[i] = sent;
+		turn.lazySet(i, pos + 1);
+	}
+	
+	// Claim the next position, or return -1 if the ring is full. The caller fills the slot, then gives 
+	// it its next turn, so the log thread only takes it out once it is complete.
+	static long claim()
+	{
+		long pos = tail.get();
+		while (true)
+		{
+			long ahead = turn.get((int) pos & mask) - pos;
+			if (ahead == 0 && tail.compareAndSet(pos, pos + 1))
+				return pos;
+			if (ahead < 0) // The slot still holds the event of the previous round.
+			{
+				dropped.incrementAndGet();
+				return -1;
+			}
+			pos = tail.get(); // Another thread took this position.
+		}
+	}
+	
+	// Wait, up to a second, until every event logged so far is written out. Used before the server exits.
+	static void flush()
+	{
+		long target = tail.get();
+		long end = System.currentTimeMillis() + 1000;
+		while (flushed < target && System.currentTimeMillis() < end)
+		{
+			LockSupport.parkNanos(1000000);
+		}
+	}
+	
+	// The log thread: take the events out in order, and write the output when the ring is empty.
+	public void run()
+	{
+		boolean dirty = false; // True if some output is not written yet.
+		while (true)
+		{
+			long pos = head;
+			int i = (int) pos & mask;
+			if (turn.get(i) != pos + 1)
+			{
+				if (dirty)
+				{
+					write();
+					dirty = false;
+				}
+				flushed = pos;
+				LockSupport.parkNanos(1000000);
+				continue;
+			}
+			
+			format(i);
+			text[i] = null;
+			cause[i] = null;
+			turn.lazySet(i, pos + capacity); // The slot is free for the next round.
+			head = pos + 1;
+			dirty = true;
+		}
+	}
+	
+	// Print the event of slot i, and add its record to the access log.
+	static void format(int i)
+	{
+		if (kind[i] == MESSAGE)
+		{
+			out.println(text[i]);
+			if (cause[i] != null)
+				cause[i].printStackTrace(out);
+			return;
+		}
+		
+		if (kind[i] == REQUEST_PRINTED)
+		{
+			// Print out on the console which joke/proverb has been sent to the client.
+			out.println("Sending " + modes[i].label + " #" + item[i] + " to Clent " 
+					+ new UUID(msb[i], lsb[i]) + ".\n");
+		}
+		
+		if (access != null)
+		{
+			if (records.remaining() < RECORD)
+				write();
+			records.putLong(time[i]).putLong(msb[i]).putLong(lsb[i]).putInt(item[i]).putInt(state[i]);
+			records.put((byte) modes[i].code.charAt(0)).put(UNUSED);
+		}
+	}
+	
+	// Write out the console and the access log records.
+	static void write()
+	{
+		out.flush();
+		if (access == null)
+			return;
+		records.flip();
+		try
+		{
+			while (records.hasRemaining())
+			{
+				access.write(records);
+			}
+		}
+		catch (IOException ioe)
+		{
+			out.println("Access log error " + ioe);
+		}
+		records.clear();
+	}
+	
+	// The settings and the counters of the log, for the admin report.
+	static String report()
+	{
+		long taken = head;
+		return "Log level " + (level == ERROR? "error": level == INFO? "info": "debug") + ", 1 request line in " + sample 
+				+ ", " + (tail.get() - taken) + " of " + capacity + " slots waiting, " + taken + " written, " 
+				+ dropped.get() + " dropped" + (accessFile != null? ", access log " + accessFile: "") + ".";
+	}
+}
+
+
+// The metrics of the server, returned to the admin by the "STATS" command. Recording a request costs two reads 
+// of the clock and a few additions which rarely contend: the counters are LongAdders, whose threads add to cells 
+// of their own, and the latencies go to a Histogram striped by thread. Only a snapshot adds them up.
+class Metrics
+{
+	static final long START = System.nanoTime(); // When the server started.
+	
+	static final LongAdder text = new LongAdder(); // Single requests of the text protocol.
+	static final LongAdder batches = new LongAdder(); // Batch requests of the text protocol.
+	static final LongAdder binary = new LongAdder(); // Request frames of the binary protocol.
+	static final LongAdder accepted = new LongAdder(); // Client connections accepted, by either engine.
+	static final LongAdder connections = new LongAdder(); // Client connections open.
+	static final LongAdder workers = new LongAdder(); // Worker tasks running.
+	static final LongAdder errors = new LongAdder(); // Errors logged, dropped ones included.
+	static final Histogram latency = new Histogram(); // Nanoseconds from a request read to its reply written.
+	static final AtomicInteger ports = new AtomicInteger(); // Client ports listening.
+	
+	// The previous snapshot, the rates are measured since then.
+	static long lastTime = START, lastRequests, lastAccepted;
+	
+	// Count a request of the given kind, which was read at start.
+	static void request(LongAdder kind, long start)
+	{
+		kind.increment();
+		latency.record(System.nanoTime() - start);
+	}
+	
+	static long requests() {return text.sum() + batches.sum() + binary.sum();}
+	
+	// A snapshot of the metrics in one line of name=value pairs, the latencies in microseconds.
+	static synchronized String report()
+	{
+		long now = System.nanoTime();
+		long requests = requests();
+		long accepts = accepted.sum();
+		double seconds = Math.max(1e-9, (now - lastTime) / 1e9);
+		String rates = String.format(Locale.ROOT, "request_rate=%.1f accept_rate=%.1f", (requests - lastRequests) / seconds, (accepts - lastAccepted) / seconds);
+		lastTime = now;
+		lastRequests = requests;
+		lastAccepted = accepts;
+		
+		return "uptime_s=" + (now - START) / 1000000000L + " requests=" + requests + " text=" + text.sum() + " batch=" + batches.sum() 
+				+ " binary=" + binary.sum() + " " + rates + " accepted=" + accepts + " connections=" + connections.sum() 
+				+ " workers=" + workers.sum() + " sessions=" + JokeServer.sessions.size() + " errors=" + errors.sum() 
+				+ " log_dropped=" + Log.dropped.get() + " " + latency.report();
+	}
+	
+	// The answer to the "HEALTH" probe: "READY" when the server can serve requests, otherwise "NOT READY" and why. 
+	// It only reads a few fields, so it may be asked as often as a load balancer likes.
+	static String health()
+	{
+		StringBuilder why = new StringBuilder();
+		if (JokeServer.sessions == null)
+			why.append(" no session table,");
+		if (ModeRegistry.get().mode.catalog() == null)
+			why.append(" no catalog for the mode,");
+		if (ports.get() == 0)
+			why.append(" no client port listening,");
+		if (Launcher.admission != null && Launcher.admission.availablePermits() == 0)
+			why.append(" no room for another connection,");
+		return (why.length() == 0? "READY": "NOT READY:" + why.substring(0, why.length() - 1));
+	}
+}
 
-	public void run()
+// A histogram of latencies in nanoseconds, which any number of threads record into without a lock. Each power 
+// of 2 is split in 32 buckets, so a value is known to within about 3%. The buckets are kept in STRIPES copies, a 
+// thread adds to the copy of its id, so the threads of a busy server seldom write to the same cache lines.
+class Histogram
+{
+	static final int SUB_BITS = 6; // A value below 2^SUB_BITS has its own bucket.
+	static final int SUB = 1 << SUB_BITS;
+	static final int HALF = SUB / 2; // Buckets of each power of 2 above SUB.
+	static final int BUCKETS = (64 - SUB_BITS) * HALF + SUB;
+	static final int STRIPES = Integer.highestOneBit(Math.max(1, Math.min(16, Runtime.getRuntime().availableProcessors())));
+	
+	AtomicLongArray counts = new AtomicLongArray(STRIPES * BUCKETS);
+	LongAdder sum = new LongAdder();
+	
+	// The bucket of a value: the value itself when small, or its power of 2 and its SUB_BITS - 1 next bits.
+	static int index(long value)
 	{
-		PrintStream out = null; 
-		BufferedReader in = null; 
+		if (value < SUB)
+			return (int) Math.max(0, value);
+		int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BITS - 1);
+		return (shift << (SUB_BITS - 1)) + (int) (value >>> shift);
+	}
+	
+	// The highest value of a bucket.
+	static long highest(int index)
+	{
+		if (index < SUB)
+			return index;
+		int shift = index / HALF - 1;
+		long m = index % HALF + HALF;
+		return ((m + 1) << shift) - 1;
+	}
+	
+	void record(long nanos)
+	{
+		int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+		counts.incrementAndGet(stripe * BUCKETS + index(nanos));
+		sum.add(nanos);
+	}
+	
+	// The count, mean, percentiles and maximum, in microseconds. The stripes are added up bucket by bucket, 
+	// the records which come meanwhile may or may not be in it.
+	String report()
+	{
+		long[] merged = new long[BUCKETS];
+		long count = 0;
+		for (int i = 0; i < counts.length(); i++)
+		{
+			long c = counts.get(i);
+			merged[i % BUCKETS] += c;
+			count += c;
+		}
 		
-		// Print out that the admin client has been connected.
-		System.out.println("AdminClient connected at port " + AdminThread.port + ".");
+		double[] ps = {50, 90, 99, 99.9};
+		long[] values = new long[ps.length];
+		long seen = 0;
+		int p = 0;
+		int max = 0;
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			if (merged[i] == 0)
+				continue;
+			seen += merged[i];
+			max = i;
+			while (p < ps.length && seen >= Math.max(1, (long) Math.ceil(ps[p] / 100 * count)))
+				values[p++] = highest(i);
+		}
+		return String.format(Locale.ROOT, "latency_count=%d latency_mean_us=%.1f latency_p50_us=%.1f latency_p90_us=%.1f latency_p99_us=%.1f latency_p999_us=%.1f latency_max_us=%.1f", 
+				count, (count == 0? 0: sum.sum() / 1000.0 / count), values[0] / 1000.0, values[1] / 1000.0, values[2] / 1000.0, values[3] / 1000.0, 
+				(count == 0? 0: highest(max) / 1000.0));
+	}
+}
+
+
+// Runs the Worker and AdminWorker tasks with the execution strategy chosen by "-exec=".
+// The tasks themselves stay simple blocking code, only the thread which runs them changes.
+class Launcher
+{
+	static ExecutorService executor; // The pool or the virtual-thread executor, null for a new platform thread per task.
+	static ThreadPoolExecutor pool; // The bounded platform pool when exec is "pool", used for the reports.
+	static Semaphore admission; // One permit per connection the server may hold, null for no limit.
+	static int capacity; // Total number of permits of the admission semaphore.
+	static AtomicLong waits = new AtomicLong(); // Number of times an accept loop had to wait because the server was full.
+	static AtomicLong accepting = new AtomicLong(); // Permits held by accept loops which are still waiting for a connection.
+	
+	// Create the executor for the chosen strategy, this is called once at startup.
+	static void init()
+	{
+		if (JokeServer.exec.equals("pool"))
+		{
+			// A fixed pool with a bounded queue, the admission permits cover the running and the queued tasks, 
+			// so the queue never overflows.
+			pool = new ThreadPoolExecutor(JokeServer.poolSize, JokeServer.poolSize, 0L, TimeUnit.MILLISECONDS, 
+					new ArrayBlockingQueue<Runnable>(JokeServer.queueDepth));
+			executor = pool;
+			capacity = JokeServer.poolSize + JokeServer.queueDepth;
+		}
+		else
+		{
+			if (JokeServer.exec.equals("virtual"))
+			{
+				// Virtual threads only exist on JDK 21 and later, so look the factory method up at runtime.
+				try
+				{
+					executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+				}
+				catch (ReflectiveOperationException x)
+				{
+					System.out.println("Virtual threads are not available on this JDK, using a new platform thread per task.");
+					JokeServer.exec = "thread";
+				}
+			}
+			capacity = JokeServer.maxConnections;
+		}
+		
+		// The event loops of the nio engine run no task per connection, only "-max=" limits their connections.
+		if (JokeServer.engine.equals("nio"))
+			capacity = JokeServer.maxConnections;
+		if (capacity > 0)
+			admission = new Semaphore(capacity);
+	}
+	
+	// Called by an accept loop before accepting, waits while the server is full.
+	static void admit()
+	{
+		if (admission == null)
+			return;
+		if (!admission.tryAcquire())
+		{
+			waits.incrementAndGet();
+			admission.acquireUninterruptibly();
+		}
+		accepting.incrementAndGet();
+	}
+	
+	// Give back a permit taken by admit().
+	static void release()
+	{
+		if (admission != null)
+			admission.release();
+	}
+	
+	// Start running the task of an admitted connection, its permit is given back when the task ends.
+	static void launch(final Runnable task)
+	{
+		Runnable run = task;
+		if (admission != null)
+		{
+			run = () -> {
+				try {task.run();}
+				finally {release();}
+			};
+		}
+		
+		if (executor == null)
+			new Thread(run).start();
+		else
+			executor.execute(run);
+	}
+	
+	// Start running a task outside of the admission limit, used for the admin connections 
+	// so that the admin can still reach a full server.
+	static void launchAside(Runnable task)
+	{
+		if (executor == null || executor == pool)
+			new Thread(task).start();
+		else
+			executor.execute(task);
+	}
+	
+	// A summary of the strategy, printed at startup.
+	static String describe()
+	{
+		if (JokeServer.exec.equals("pool"))
+			return "a pool of " + JokeServer.poolSize + " platform threads with a queue of " + JokeServer.queueDepth;
+		else if (JokeServer.exec.equals("virtual"))
+			return "a virtual thread per connection";
+		else
+			return "a platform thread per connection";
+	}
+	
+	// The current load of the server, returned to the admin by the "POOL" command.
+	static String report()
+	{
+		StringBuilder sb = new StringBuilder("Tasks on " + describe() + ". ");
+		if (admission != null)
+			sb.append(capacity - admission.availablePermits() - accepting.get()).append(" of ").append(capacity).append(" connections in use, ");
+		if (pool != null)
+			sb.append(pool.getActiveCount()).append(" running, ").append(pool.getQueue().size()).append(" queued, ");
+		sb.append(waits.get()).append(" accept waits.");
+		for (Listener l : Listener.all)
+			sb.append(" Port ").append(l.port).append(": ").append(l.accepted.get()).append(" accepted.");
+		return sb.toString();
+	}
+}
 
+// The accept loop shared by the primary port, the secondary port and the admin ports.
+// Before each accept it waits for room in the server, so a burst stays in the kernel backlog 
+// instead of growing the number of threads or the pool queue without bound.
+class Listener implements Runnable
+{
+	static final List<Listener> all = new CopyOnWriteArrayList<>(); // Every running listener, used by the admin reports.
+	
+	int port; // The port this listener accepts at.
+	Function<Socket, Runnable> task; // Creates the Worker or AdminWorker of an accepted socket.
+	boolean admitted; // True if the connections count against the admission limit of the Launcher.
+	AtomicLong accepted = new AtomicLong(); // Number of accepted connections.
+	
+	Listener(int port, Function<Socket, Runnable> task, boolean admitted)
+	{
+		this.port = port;
+		this.task = task;
+		this.admitted = admitted;
+	}
+	
+	public void run()
+	{
 		try
 		{
-			// Get the command send by the admin client.
-			in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
+			// Bind a blocking server channel to the port, with the configured backlog. 
+			// The accepted sockets then have a channel, so the replies can be written in one gathering write.
+			ServerSocketChannel serversock = ServerSocketChannel.open();
+			serversock.socket().setReuseAddress(true);
+			serversock.bind(new InetSocketAddress(port), JokeServer.backlog);
+			all.add(this);
+			if (admitted)
+				Metrics.ports.incrementAndGet();
 			
-			// Print out the message to show on the console of admin client.
-			out = new PrintStream(sock.getOutputStream());
-
-			try
-			{				
-				String oldMode = JokeServer.mode; // Get the current mode of the server.
-				JokeServer.mode = in.readLine(); // Get the command sent by the admin.
-				String toDisplay = null; // Initialize a String which will be displayed on both the server and the admin.
+			while (true) // Runs forever, waiting for connections.
+			{
+				// Wait until the server has room for one more connection before accepting it.
+				if (admitted)
+					Launcher.admit();
 				
-				// If the command is 'shutdown', print a message and notify the admin, then close the server. 
-				if(JokeServer.mode.equals("SHUTDOWN"))
+				Socket sock;
+				try
 				{
-					System.out.println("Shut down by the Admin Client. Closing...");
-					System.out.flush();
-					out.println("Server has been shut down.");
-					System.exit(0);
+					sock = serversock.accept().socket();
 				}
-				
-				// If the command is 's', which means the admin now is connecting to both ports of this server.
-				// Change the current port to the other port, and print out summary message both on console and to the admin.
-				else if (JokeServer.mode.equals("S"))
+				catch (IOException ioe)
 				{
-					AdminThread.port = ((AdminThread.port == 5051)? 5050:5051); // Switch the port.
-					System.out.println("Admin Client now is switched to using port " + AdminThread.port + ".\n");
-					System.out.flush();
-					out.println("Server port switched to " + AdminThread.port + ".");			
+					if (admitted)
+						Launcher.release();
+					throw ioe;
 				}
-				
-				// If the command is P or J, switch between proverb mode and joke mode.
-				else
-				{	
-					toDisplay = (JokeServer.mode.equals("P")? "Proverb Mode.":"Joke Mode.");
+				finally
+				{
+					if (admitted)
+						Launcher.accepting.decrementAndGet();
 				}
+				accepted.incrementAndGet();
 				
-				
-				// If the server is already on the demanded mode, notify the admin that nothing needs to be changed.
-				if(JokeServer.mode.equals(oldMode))
+				if (admitted)
 				{
-					out.println("Currently on this mode, no need to change.");
+					Metrics.accepted.increment();
+					Metrics.connections.increment();
+					Launcher.launch(task.apply(sock));
 				}
-				
-				// Print summary message indicating the current mode the server is on.
 				else
+					Launcher.launchAside(task.apply(sock));
+			}
+		}
+		catch (IOException ioe) {Log.error(ioe.toString());}
+	}
+}
+
+// A cluster of servers, given by "-cluster=" with the peer address of every node (host:port), and "-node=" 
+// with the peer address of this one. Each client is owned by one node, chosen by its UUID on a consistent-hash 
+// ring where every node has POINTS places, so a node which joins or leaves only moves the clients next to it.
+// Any node may be sent any request: it reads the state and writes the reply itself, and only the session part 
+// of the request (see Worker.session) goes to the owner over the peer port, so each session lives in one place. 
+// The event loops of the "nio" engine never wait for that round trip: they hand the request to the forwarder 
+// threads and write its reply once it is back, so a slow node only delays its own clients. Every new deck is 
+// also sent in the background to the next node of the ring, the backup, which serves the client with the same 
+// deck while the owner does not answer. The peer port serves frames of its own, started by Frames.PEER, and 
+// does not count against the client admission.
+class Cluster
+{
+	static final int POINTS = 64; // Places of each node on the ring.
+	static final int SERVE = 'S'; // Peer frame asking the owner for the deck of a client.
+	static final int REPLICATE = 'R'; // Peer frame giving the backup a new deck.
+	static final int DOWN_MILLIS = 2000; // A node which did not answer is not asked again for this long.
+	
+	static Peer[] nodes; // The nodes, null when the server runs alone.
+	static ExecutorService forwarders; // Run the requests of the event loops whose session is kept by another node.
+	static int self; // The place of this node in nodes.
+	static long[] points; // The places of the ring, sorted.
+	static int[] owners; // The node at each place of the ring.
+	static int timeout = 500; // Milliseconds to wait for a peer, set by "-peertimeout=".
+	
+	// The new decks waiting to be sent to the backups: the node, the UUID, the category code and the deck.
+	static final ArrayBlockingQueue<long[]> replicas = new ArrayBlockingQueue<>(8192);
+	
+	static final AtomicLong forwarded = new AtomicLong(); // Requests whose session is kept by another node.
+	static final AtomicLong failovers = new AtomicLong(); // Requests not answered by a node, and sent to the next one.
+	static final AtomicLong replicated = new AtomicLong(); // Decks sent to a backup.
+	static final AtomicLong dropped = new AtomicLong(); // Decks not sent, since the queue was full or the backup down.
+	static final AtomicLong received = new AtomicLong(); // Decks received as a backup.
+	
+	// Build the ring, then listen at the peer port of this node.
+	static void init(String cluster, String node)
+	{
+		ring(cluster);
+		self = -1;
+		for (int i = 0; i < nodes.length; i++)
+		{
+			if (nodes[i].address.equalsIgnoreCase(node == null? "": node.trim()))
+				self = i;
+		}
+		if (self < 0)
+		{
+			System.out.println("-node= must be one of the addresses of -cluster=.");
+			System.exit(1);
+		}
+		
+		// As many forwarders as connections kept open to the other nodes, the event loops queue their requests.
+		forwarders = Executors.newFixedThreadPool(Peer.IDLE * Math.max(1, nodes.length - 1), r -> {
+			Thread t = new Thread(r, "forwarder");
+			t.setDaemon(true);
+			return t;
+		});
+		
+		Thread replicator = new Thread(Cluster::replicator, "replicator");
+		replicator.setDaemon(true);
+		replicator.start();
+		
+		Thread peers = new Thread(new Listener(nodes[self].port, PeerWorker::new, false), "peers");
+		peers.setDaemon(true);
+		peers.start();
+		System.out.println("Node " + nodes[self].address + " of a cluster of " + nodes.length + ".");
+	}
+	
+	// Make the nodes of the cluster, and place every node POINTS times on the ring. The places follow from 
+	// its address only, so every node builds the same ring.
+	static void ring(String cluster)
+	{
+		String[] addresses = cluster.split(",");
+		nodes = new Peer[addresses.length];
+		for (int i = 0; i < addresses.length; i++)
+		{
+			nodes[i] = new Peer(addresses[i].trim());
+		}
+		
+		long[][] ring = new long[nodes.length * POINTS][];
+		for (int i = 0; i < nodes.length; i++)
+		{
+			for (int j = 0; j < POINTS; j++)
+			{
+				ring[i * POINTS + j] = new long[] {SessionTable.mix(nodes[i].address.toLowerCase() + "#" + j, 0x9E3779B97F4A7C15L), i};
+			}
+		}
+		Arrays.sort(ring, (a, b) -> Long.compare(a[0], b[0]));
+		points = new long[ring.length];
+		owners = new int[ring.length];
+		for (int i = 0; i < ring.length; i++)
+		{
+			points[i] = ring[i][0];
+			owners[i] = (int) ring[i][1];
+		}
+	}
+	
+	// The first place of the ring at or after the client's hash, wrapping around.
+	static int place(long msb, long lsb)
+	{
+		int i = Arrays.binarySearch(points, SessionTable.hash(msb, lsb));
+		if (i < 0)
+			i = -i - 1;
+		return (i == points.length? 0: i);
+	}
+	
+	// The node which owns the client.
+	static int owner(long msb, long lsb)
+	{
+		return owners[place(msb, lsb)];
+	}
+	
+	// True if the session of the client is kept by another node, then its requests wait for that node. 
+	// A request whose state carries its deck under a token needs no session, any node serves it alone.
+	static boolean remote(long msb, long lsb, boolean token)
+	{
+		return !token && nodes != null && owner(msb, lsb) != self;
+	}
+	
+	// The same, for a request read by an event loop, before it is served: with "-stateless" every version 2 
+	// state carries a token, an 8-bit state never does.
+	static boolean remote(long msb, long lsb, String state)
+	{
+		return remote(msb, lsb, Token.key != null && state.length() > 0 && state.charAt(0) == State.MARK);
+	}
+	
+	// The n-th node which may keep the session of the client: the owner first, then the backup, and so on.
+	static int candidate(long msb, long lsb, int n)
+	{
+		int i = place(msb, lsb);
+		boolean[] seen = new boolean[nodes.length];
+		for (int count = 0; ; i = (i + 1) % points.length)
+		{
+			if (!seen[owners[i]])
+			{
+				seen[owners[i]] = true;
+				if (count++ == n)
+					return owners[i];
+			}
+		}
+	}
+	
+	// Run the session part of the request on the first node which answers, in ring order from the owner. 
+	// When this node comes first, or no node answers, the session is kept here.
+	static int serve(long msb, long lsb, int sent, int length, Category mode, Reply reply)
+	{
+		forwarded.incrementAndGet();
+		for (int n = 0; n < nodes.length; n++)
+		{
+			int node = candidate(msb, lsb, n);
+			if (node == self)
+				break;
+			Peer peer = nodes[node];
+			if (peer.isDown())
+				continue;
+			
+			try
+			{
+				return peer.serve(msb, lsb, sent, length, mode, reply);
+			}
+			catch (IOException x)
+			{
+				peer.down();
+				failovers.incrementAndGet();
+				Log.error("Node " + peer.address + " did not answer " + x);
+			}
+		}
+		return Worker.session(msb, lsb, sent, length, mode, reply);
+	}
+	
+	// Queue a new deck for the first node after this one which may keep the session of the client.
+	static void replicate(long msb, long lsb, Category mode, long deck)
+	{
+		if (nodes == null || nodes.length < 2)
+			return;
+		int node = candidate(msb, lsb, 0);
+		if (node == self)
+			node = candidate(msb, lsb, 1);
+		if (!replicas.offer(new long[] {node, msb, lsb, mode.code.charAt(0), deck}))
+			dropped.incrementAndGet();
+	}
+	
+	// The replicator thread sends the queued decks, and flushes the connections once the queue is empty.
+	static void replicator()
+	{
+		PeerConn[] conns = new PeerConn[nodes.length]; // One connection to each backup.
+		while (true)
+		{
+			long[] r;
+			try {r = replicas.take();}
+			catch (InterruptedException x) {return;}
+			
+			for (; r != null; r = replicas.poll())
+			{
+				int node = (int) r[0];
+				try
 				{
-					System.out.println("Server Mode has been changed, now it is on " + toDisplay + "\n");
-					System.out.flush();
-					out.println("Server Mode has been changed, now it is on " + toDisplay + ".");
+					if (conns[node] == null)
+					{
+						if (nodes[node].isDown())
+						{
+							dropped.incrementAndGet();
+							continue;
+						}
+						conns[node] = nodes[node].open();
+					}
+					DataOutputStream out = conns[node].out;
+					out.writeByte(Frames.PEER);
+					out.writeByte(REPLICATE);
+					out.writeLong(r[1]);
+					out.writeLong(r[2]);
+					out.writeByte((int) r[3]);
+					out.writeLong(r[4]);
+					replicated.incrementAndGet();
+				}
+				catch (IOException x)
+				{
+					conns[node].close();
+					conns[node] = null;
+					nodes[node].down();
+					dropped.incrementAndGet();
 				}
-				
 			}
-
-			/* If anything goes wrong, keep the program running by catch the exception 
-			and print out the error message.
-			*/
-			catch(IOException x) 
+			
+			for (int i = 0; i < conns.length; i++)
 			{
-				System.out.println("Server read error");
-				x.printStackTrace();
+				try
+				{
+					if (conns[i] != null)
+						conns[i].out.flush();
+				}
+				catch (IOException x)
+				{
+					conns[i].close();
+					conns[i] = null;
+					nodes[i].down();
+				}
 			}
+		}
+	}
+	
+	// The figures of the cluster, returned to the admin by the "CLUSTER" command.
+	static String report()
+	{
+		if (nodes == null)
+			return "Not in a cluster.";
+		StringBuilder sb = new StringBuilder("Node " + nodes[self].address + " of");
+		for (int i = 0; i < nodes.length; i++)
+		{
+			sb.append(i > 0? ",": "").append(' ').append(nodes[i].address).append(i == self? " (this node)": nodes[i].isDown()? " (down)": "");
+		}
+		return sb.append("; ").append(forwarded.get()).append(" forwarded, ").append(failovers.get()).append(" failovers, ")
+				.append(replicated.get()).append(" decks replicated, ").append(dropped.get()).append(" dropped, ")
+				.append(received.get()).append(" received.").toString();
+	}
+}
 
-			sock.close(); // Close this socket.
+// Another node of the cluster, and the idle connections to its peer port.
+class Peer
+{
+	static final int IDLE = 8; // Most connections kept open to one node.
+	
+	String address; // host:port, as given by "-cluster=".
+	String host;
+	int port;
+	volatile long downUntil; // The node is not asked before this time, after it did not answer.
+	ArrayBlockingQueue<PeerConn> idle = new ArrayBlockingQueue<>(IDLE); // Connections not in use.
+	
+	Peer(String address)
+	{
+		this.address = address;
+		int colon = address.lastIndexOf(':');
+		host = address.substring(0, colon);
+		port = Integer.parseInt(address.substring(colon + 1));
+	}
+	
+	boolean isDown() {return System.currentTimeMillis() < downUntil;}
+	
+	// Stop asking the node for a while, and close its idle connections.
+	void down()
+	{
+		downUntil = System.currentTimeMillis() + Cluster.DOWN_MILLIS;
+		PeerConn c;
+		while ((c = idle.poll()) != null)
+		{
+			c.close();
 		}
-		catch(IOException ioe)
+	}
+	
+	PeerConn open() throws IOException
+	{
+		return new PeerConn(host, port);
+	}
+	
+	// Ask the node for the deck of the client, see Worker.session.
+	int serve(long msb, long lsb, int sent, int length, Category mode, Reply reply) throws IOException
+	{
+		PeerConn c = idle.poll();
+		if (c == null)
+			c = open();
+		try
+		{
+			c.out.writeByte(Frames.PEER);
+			c.out.writeByte(Cluster.SERVE);
+			c.out.writeLong(msb);
+			c.out.writeLong(lsb);
+			c.out.writeByte(mode.code.charAt(0));
+			c.out.writeByte(sent);
+			c.out.writeByte(length);
+			c.out.flush();
+			
+			if (c.in.readUnsignedByte() != Frames.PEER)
+				throw new IOException("Bad peer frame");
+			reply.deck = c.in.readLong();
+			int next = c.in.readUnsignedByte();
+			if (!idle.offer(c))
+				c.close();
+			return next;
+		}
+		catch (IOException x)
 		{
-			System.out.println(ioe);
+			c.close();
+			throw x;
 		}
 	}
 }
 
-// A second worker class to run the secondary server which is listening at port 4546.
-class SecondWorker implements Runnable 
-{	  
-	  public void run()
-	  {
-		  
-	    int q_len = 6;
-	    int port = 4546;  
-	    Socket sock;
+// A connection to the peer port of another node.
+class PeerConn
+{
+	Socket sock;
+	DataInputStream in;
+	DataOutputStream out;
+	
+	PeerConn(String host, int port) throws IOException
+	{
+		sock = new Socket();
+		sock.connect(new InetSocketAddress(host, port), Cluster.timeout);
+		sock.setSoTimeout(Cluster.timeout);
+		sock.setTcpNoDelay(true);
+		in = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+		out = new DataOutputStream(new BufferedOutputStream(sock.getOutputStream()));
+	}
+	
+	void close()
+	{
+		try {sock.close();}
+		catch (IOException ioe) {}
+	}
+}
 
-	    try
-	    {
-	      ServerSocket secondsock = new ServerSocket(port, q_len);
-	      
-	      while (true) 
-	      {
-	    	  sock = secondsock.accept();
-	    	  new Worker (sock).start(); 
-	      }
-	    }
-	    catch (IOException ioe) {System.out.println(ioe);}
-	  }
+// Serves the peer frames of another node on the peer port: the session part of the requests of the 
+// clients this node owns, and the decks of the clients this node is the backup of.
+class PeerWorker implements Runnable
+{
+	Socket sock; // The connection from the other node.
+	PeerWorker(Socket s) {sock = s;}
+	
+	public void run()
+	{
+		try
+		{
+			sock.setTcpNoDelay(true);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(sock.getOutputStream()));
+			Reply reply = new Reply(); // Holds the deck, reused for every frame.
+			reply.token = false;
+			
+			int marker;
+			while ((marker = in.read()) >= 0)
+			{
+				int op = in.readUnsignedByte();
+				if (marker != Frames.PEER || (op != Cluster.SERVE && op != Cluster.REPLICATE))
+					throw new IOException("Bad peer frame");
+				long msb = in.readLong();
+				long lsb = in.readLong();
+				Category mode = Category.of(String.valueOf((char) in.readUnsignedByte()));
+				
+				if (op == Cluster.REPLICATE)
+				{
+					long deck = in.readLong();
+					if (mode != null) // A category not registered on this node is not kept.
+						JokeServer.sessions.setDeck(msb, lsb, mode.field, deck);
+					Cluster.received.incrementAndGet();
+					continue;
+				}
+				
+				int sent = in.readUnsignedByte();
+				int length = in.readUnsignedByte();
+				if (mode == null)
+					throw new IOException("Category not registered on this node");
+				reply.catalog = mode.catalog(); // The catalog of this node the deck is checked against.
+				int next = Worker.session(msb, lsb, sent, length, mode, reply);
+				out.writeByte(Frames.PEER);
+				out.writeLong(reply.deck);
+				out.writeByte(next);
+				out.flush();
+			}
+		}
+		catch (IOException x)
+		{
+			Log.error("Peer read error " + x);
+		}
+		
+		try {sock.close();}
+		catch (IOException ioe) {Log.error(ioe.toString());}
+	}
+}
+
+// The binary framed protocol, served on the same ports as the text protocol. A frame starts with a marker 
+// byte which can not start a line of the text protocol, followed by the 2-byte length of the body.
+// A request body holds the 16 bytes of the client's UUID and the 1-byte state; a reply holds the 1-byte 
+// mode, the 1-byte state and the UTF-8 joke/proverb. With a version 2 state (see State), the request 
+// body holds the bytes of the state after the UUID, and the reply holds their length in one byte, then 
+// them. An admin frame holds the UTF-8 command or reply.
+class Frames
+{
+	static final int REQUEST = 0xB1; // Marker of a request frame sent by a client.
+	static final int ADMIN = 0xB2; // Marker of a command frame sent by an admin client.
+	static final int PEER = 0xB3; // Marker of a frame between the nodes of a cluster, on their peer ports (see Cluster).
+	static final int REQUEST_BODY = 17; // Length of the body of a request frame with an 8-bit state.
+	static final int UUID_BODY = 16; // Length of the UUID, a version 2 state follows it.
+	static final int MAX_BODY = 1024; // A body longer than this is treated as an error.
+	static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	// Read 8 bytes as a big-endian long, the two halves of a client's UUID are read this way.
+	static long getLong(byte[] b, int off)
+	{
+		long v = 0;
+		for (int i = 0; i < 8; i++)
+		{
+			v = (v << 8) | (b[off + i] & 0xFF);
+		}
+		return v;
+	}
+	
+	// Encode an admin reply frame: the length and the UTF-8 text.
+	static byte[] text(String text)
+	{
+		byte[] t = text.getBytes(UTF8);
+		byte[] f = new byte[2 + t.length];
+		f[0] = (byte) (t.length >> 8);
+		f[1] = (byte) t.length;
+		System.arraycopy(t, 0, f, 2, t.length);
+		return f;
+	}
+	
+	// Read the length and the UTF-8 text of an admin command frame, its marker is already read.
+	static String readText(DataInputStream in) throws IOException
+	{
+		int length = in.readUnsignedShort();
+		if (length > MAX_BODY)
+			throw new IOException("Bad admin frame");
+		byte[] t = new byte[length];
+		in.readFully(t);
+		return new String(t, UTF8);
+	}
 }
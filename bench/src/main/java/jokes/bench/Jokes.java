@@ -0,0 +1,207 @@
+package jokes.bench;
+
+import java.io.OutputStream; // The log of the servers, which keeps nothing.
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle; // The methods of the servers and the clients.
+import java.lang.invoke.MethodHandles; // Turns the reflected methods into method handles.
+import java.lang.invoke.MethodType; // The types of the handles, as the benchmarks see them.
+import java.lang.reflect.Constructor; // The constructors of the servers' classes.
+import java.lang.reflect.Field; // The settings of the servers and the clients.
+import java.lang.reflect.Method; // The methods of the servers and the clients.
+import java.nio.ByteBuffer; // The parts of a reply.
+import java.nio.channels.GatheringByteChannel; // The stub connection, written the way a socket is.
+import java.nio.channels.WritableByteChannel; // The connection a reply is written to.
+
+// The servers and the clients are in the default package, which a benchmark can not be in (JMH needs a package)
+// and which no other package can see. So their classes are found by name, and their methods are called through
+// method handles kept in static final fields: the JIT compiler inlines them like direct calls. The types of
+// the default package are seen as Object by the benchmarks.
+final class Jokes
+{
+	static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+	static final Class<?> JOKE_SERVER = type("JokeServer");
+	static final Class<?> JOKE_CLIENT = type("JokeClient");
+	static final Class<?> WORKER = type("Worker");
+	static final Class<?> CATEGORY = type("Category");
+	static final Class<?> ARRAY_CATALOG = type("ArrayCatalog");
+	static final Class<?> SESSION_TABLE = type("SessionTable");
+	static final Class<?> REPLY = type("Reply");
+	static final Class<?> LOG = type("Log");
+
+	// Worker.readState(int n, Category mode): int
+	static final MethodHandle READ_STATE = method(WORKER, "readState", int.class, CATEGORY);
+	// Worker.updateState(int n, int sent, Category mode): int
+	static final MethodHandle UPDATE_STATE = method(WORKER, "updateState", int.class, int.class, CATEGORY);
+	// Worker.randList(): long
+	static final MethodHandle RAND_LIST = method(WORKER, "randList");
+	// Worker.getOutputs(String id, int n, Category mode): String
+	static final MethodHandle GET_OUTPUTS = method(WORKER, "getOutputs", String.class, int.class, CATEGORY);
+	// Worker.giveSomething(String id, String state, Reply reply, WritableByteChannel ch): void
+	static final MethodHandle GIVE_SOMETHING = method(WORKER, "giveSomething", String.class, String.class, REPLY, WritableByteChannel.class);
+	// Reply.stateText(): String
+	static final MethodHandle STATE_TEXT = method(REPLY, "stateText");
+	// JokeClient.getIndex(String state): String
+	static final MethodHandle GET_INDEX = method(JOKE_CLIENT, "getIndex", String.class);
+
+	private Jokes() {}
+
+	// Get a server ready the way JokeServer.main does, without its ports: a session table for the clients, 
+	// and a joke catalog of catalogSize entries, the server staying in Joke mode. The log runs, as an error 
+	// may be logged from any request, but what it prints goes nowhere.
+	static Object server(int catalogSize, int clients) throws Exception
+	{
+		set(LOG, "level", 0); // Log.ERROR, the requests are neither printed nor queued.
+		if (get(LOG, "turn") == null) // Not started yet by another benchmark of this JVM.
+		{
+			set(LOG, "out", new PrintStream(new OutputStream()
+			{
+				public void write(int b) {}
+				
+				public void write(byte[] b, int off, int len) {}
+			}));
+			Method init = LOG.getDeclaredMethod("init");
+			init.setAccessible(true);
+			init.invoke(null);
+		}
+		set(JOKE_SERVER, "sessions", construct(SESSION_TABLE, new Class<?>[] {int.class, int.class, int.class},
+				Math.max(16, 2 * clients), 3600, 8));
+		JOKE_SERVER.getMethod("getPoolReady").invoke(null);
+
+		String[] entries = new String[catalogSize];
+		for (int i = 0; i < catalogSize; i++)
+		{
+			entries[i] = "Joke number " + i + ": why did the benchmark cross the road? To warm up the other side.";
+		}
+		Object joke = get(CATEGORY, "JOKE");
+		Object catalog = construct(ARRAY_CATALOG, new Class<?>[] {String[].class}, (Object) entries);
+		set(joke, "catalog", catalog);
+		set(joke, "deck", Math.min(4, catalogSize));
+		return joke;
+	}
+
+	// A new reply, one per thread, as each Worker thread and each event loop has.
+	static Object reply() throws Exception
+	{
+		return construct(REPLY, new Class<?>[0]);
+	}
+
+	// The server mode a client has been told, which its outputs are numbered by.
+	static void clientMode(String mode) throws Exception
+	{
+		set(JOKE_CLIENT, "mode", mode);
+	}
+
+	static Class<?> type(String name)
+	{
+		try
+		{
+			return Class.forName(name);
+		}
+		catch (ClassNotFoundException x)
+		{
+			throw new ExceptionInInitializerError(x);
+		}
+	}
+
+	// A static or instance method as a handle, its types of the default package turned into Object.
+	static MethodHandle method(Class<?> c, String name, Class<?>... params)
+	{
+		try
+		{
+			Method m = c.getDeclaredMethod(name, params);
+			m.setAccessible(true);
+			MethodHandle h = LOOKUP.unreflect(m);
+			Class<?>[] erased = h.type().parameterArray();
+			for (int i = 0; i < erased.length; i++)
+			{
+				if (!visible(erased[i]))
+					erased[i] = Object.class;
+			}
+			Class<?> result = h.type().returnType();
+			return h.asType(MethodType.methodType(visible(result)? result: Object.class, erased));
+		}
+		catch (ReflectiveOperationException x)
+		{
+			throw new ExceptionInInitializerError(x);
+		}
+	}
+
+	// True if the benchmarks can name the type, false for the types of the default package.
+	static boolean visible(Class<?> c)
+	{
+		while (c.isArray())
+		{
+			c = c.getComponentType();
+		}
+		return c.isPrimitive() || c.getName().indexOf('.') >= 0;
+	}
+
+	static Object construct(Class<?> c, Class<?>[] params, Object... args) throws Exception
+	{
+		Constructor<?> k = c.getDeclaredConstructor(params);
+		k.setAccessible(true);
+		return k.newInstance(args);
+	}
+
+	// A static field when target is a class, else a field of the object.
+	static Object get(Object target, String name) throws Exception
+	{
+		return field(target, name).get(target instanceof Class? null: target);
+	}
+
+	static void set(Object target, String name, Object value) throws Exception
+	{
+		field(target, name).set(target instanceof Class? null: target, value);
+	}
+
+	static Field field(Object target, String name) throws Exception
+	{
+		Class<?> c = (target instanceof Class? (Class<?>) target: target.getClass());
+		while (true)
+		{
+			try
+			{
+				Field f = c.getDeclaredField(name);
+				f.setAccessible(true);
+				return f;
+			}
+			catch (NoSuchFieldException x)
+			{
+				if (c.getSuperclass() == null)
+					throw x;
+				c = c.getSuperclass();
+			}
+		}
+	}
+
+	// A connection which takes every byte and keeps nothing, written through the gathering path of a socket.
+	static final class Sink implements GatheringByteChannel
+	{
+		long bytes; // Bytes written, read by the benchmarks so that nothing is left out.
+
+		public int write(ByteBuffer b)
+		{
+			int n = b.remaining();
+			b.position(b.limit());
+			bytes += n;
+			return n;
+		}
+
+		public long write(ByteBuffer[] parts, int offset, int length)
+		{
+			long n = 0;
+			for (int i = offset; i < offset + length; i++)
+			{
+				n += write(parts[i]);
+			}
+			return n;
+		}
+
+		public long write(ByteBuffer[] parts) {return write(parts, 0, parts.length);}
+
+		public boolean isOpen() {return true;}
+
+		public void close() {}
+	}
+}
@@ -0,0 +1,154 @@
+package jokes.bench;
+
+import java.nio.channels.WritableByteChannel; // The stub connection, as the servers see it.
+import java.util.ArrayList; // The states of a client's cycle.
+import java.util.List;
+import java.util.UUID; // The simulated clients.
+import java.util.concurrent.TimeUnit; // Unit of the results.
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.ThreadParams;
+
+// The request path of the server, in memory: the lookup of a client's item, and a whole request, from the
+// client's UUID and state to the reply written to a connection which keeps nothing. Each thread plays its
+// own clients, which send back the state of their last reply, as the real clients do. The states of a
+// client go round a cycle, one per deck, which is played once before the measure: the measured requests
+// send the states of the cycle in turn, so the client makes no String of its own while it is measured.
+// The runs cover the size of the catalog, the number of clients in the session table and the number of threads.
+//	> java -jar target/benchmarks.jar RequestBenchmark
+//	> java -jar target/benchmarks.jar RequestBenchmark.giveSomething -p catalogSize=1000000 -p clients=100000 -t 8
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestBenchmark
+{
+	// The server, shared by the threads.
+	@State(Scope.Benchmark)
+	public static class Server
+	{
+		// Entries of the joke catalog.
+		@Param({"10", "10000", "1000000"})
+		public int catalogSize;
+
+		// Clients with a session, shared out between the threads.
+		@Param({"1", "1000", "100000"})
+		public int clients;
+
+		// The state the clients start with, a version 2 state or an 8-bit state.
+		@Param({"#", "0"})
+		public String initialState;
+
+		Object mode; // Category.JOKE.
+
+		@Setup(Level.Trial)
+		public void setUp() throws Throwable
+		{
+			mode = Jokes.server(catalogSize, clients);
+		}
+	}
+
+	// The clients of one thread, and its reply and connection, as each Worker thread has.
+	@State(Scope.Thread)
+	public static class Client
+	{
+		String[] ids; // The UUIDs.
+		String[][] cycles; // The states each client sends in turn, the reply to each one is the next one.
+		int[] steps; // The place of the next state of each client in its cycle.
+		int next; // The next client to send a request.
+		Object reply; // Reply.
+		Jokes.Sink sink = new Jokes.Sink();
+
+		@Setup(Level.Trial)
+		public void setUp(Server server, BenchmarkParams params, ThreadParams thread) throws Throwable
+		{
+			int count = Math.max(1, server.clients / params.getThreads());
+			ids = new String[count];
+			cycles = new String[count][];
+			steps = new int[count];
+			reply = Jokes.reply();
+			for (int i = 0; i < count; i++)
+			{
+				ids[i] = UUID.randomUUID().toString();
+				cycles[i] = cycle(ids[i], server.initialState);
+			}
+		}
+
+		// Send the client's requests until its state comes back to the one of its first reply, so that every
+		// client has a session before the measure, and return the states in the order they are sent.
+		String[] cycle(String id, String initialState) throws Throwable
+		{
+			Jokes.GIVE_SOMETHING.invokeExact(id, initialState, reply, (WritableByteChannel) sink);
+			String first = (String) Jokes.STATE_TEXT.invokeExact(reply);
+			List<String> states = new ArrayList<>();
+			String state = first;
+			do
+			{
+				if (states.size() == 1000)
+					throw new IllegalStateException("The states of " + id + " do not go round a cycle.");
+				states.add(state);
+				Jokes.GIVE_SOMETHING.invokeExact(id, state, reply, (WritableByteChannel) sink);
+				state = (String) Jokes.STATE_TEXT.invokeExact(reply);
+			}
+			while (!state.equals(first));
+			return states.toArray(new String[0]);
+		}
+	}
+
+	@Benchmark
+	public String getOutputs(Server server, Client client) throws Throwable
+	{
+		int i = client.next++;
+		if (client.next == client.ids.length)
+			client.next = 0;
+		return (String) Jokes.GET_OUTPUTS.invokeExact(client.ids[i], i & 3, server.mode);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public String getOutputs4(Server server, Client client) throws Throwable
+	{
+		return getOutputs(server, client);
+	}
+
+	@Benchmark
+	public long giveSomething(Client client) throws Throwable
+	{
+		int i = client.next++;
+		if (client.next == client.ids.length)
+			client.next = 0;
+		String[] cycle = client.cycles[i];
+		int step = client.steps[i];
+		client.steps[i] = (step + 1 == cycle.length? 0: step + 1);
+		Jokes.GIVE_SOMETHING.invokeExact(client.ids[i], cycle[step], client.reply, (WritableByteChannel) client.sink);
+		return client.sink.bytes;
+	}
+
+	@Benchmark
+	@Threads(4)
+	public long giveSomething4(Client client) throws Throwable
+	{
+		return giveSomething(client);
+	}
+
+	@Benchmark
+	@Threads(Threads.MAX)
+	public long giveSomethingMax(Client client) throws Throwable
+	{
+		return giveSomething(client);
+	}
+}
@@ -0,0 +1,82 @@
+package jokes.bench;
+
+import java.util.concurrent.TimeUnit; // Unit of the results.
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// The state machine: reading and updating an 8-bit state on the server, drawing a new deck, and the output
+// index the client prints for a state. The states go through every value, so none of them is a constant.
+//	> java -jar target/benchmarks.jar StateBenchmark
+//	> java -jar target/benchmarks.jar StateBenchmark.randList -t 4
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StateBenchmark
+{
+	Object mode; // Category.JOKE.
+	int n; // The next 8-bit state.
+
+	@Setup(Level.Trial)
+	public void setUp() throws Throwable
+	{
+		mode = Jokes.server(10, 1);
+	}
+	
+	// The states a client is given for a whole deck, each one after one more item.
+	@State(Scope.Thread)
+	public static class ClientStates
+	{
+		// The states of a version 2 server ("#" and the entries in hex), or of a first server.
+		@Param({"v2", "8bit"})
+		public String format;
+		
+		String[] states;
+		int next; // The next of the states.
+		
+		@Setup(Level.Trial)
+		public void setUp() throws Throwable
+		{
+			Jokes.clientMode("J");
+			states = (format.equals("v2")? new String[] {"#4A01", "#4A03", "#4A0750010F", "#4A0F5001"}: new String[] {"128", "193", "224", "240"});
+		}
+	}
+
+	@Benchmark
+	public int readState() throws Throwable
+	{
+		return (int) Jokes.READ_STATE.invokeExact(n++ & 0xFF, mode);
+	}
+
+	@Benchmark
+	public int updateState() throws Throwable
+	{
+		int x = n++;
+		return (int) Jokes.UPDATE_STATE.invokeExact(x & 0xFF, (x >>> 8) & 3, mode);
+	}
+
+	@Benchmark
+	public long randList() throws Throwable
+	{
+		return (long) Jokes.RAND_LIST.invokeExact();
+	}
+
+	@Benchmark
+	public String getIndex(ClientStates client) throws Throwable
+	{
+		return (String) Jokes.GET_INDEX.invokeExact(client.states[client.next++ & 3]);
+	}
+}
@@ -0,0 +1,209 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader; // The replies of the nodes.
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket; // Finds free ports for the nodes.
+import java.net.Socket;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.regex.Matcher; // The counters of the "cluster" admin command.
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+// A cluster of three nodes, each one a server of its own in another JVM on free ports of this host, asked the
+// way the clients ask: a session keeps its deck whichever node serves it, and when its owner goes down the
+// backup goes on with the same deck. The ring of the nodes is built here too, only to find the owner and the
+// backup of a client, and taken down after each test.
+//	> cd bench
+//	> mvn -B test -Dtest=ClusterTest
+public class ClusterTest
+{
+	static final int NODES = 3;
+	static final int DECK = 4; // Items in a deck of a version 2 state, by default.
+	static final Pattern RECEIVED = Pattern.compile("(\\d+) received");
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	int[] ports = new int[NODES]; // The client port of each node.
+	int[] admin = new int[NODES]; // The admin port of each node.
+	Process[] nodes = new Process[NODES];
+
+	// Start the nodes, with a short peer timeout so that a node which is down is soon given up, and wait until
+	// each one is ready.
+	@Before
+	public void start() throws Exception
+	{
+		StringBuilder cluster = new StringBuilder();
+		String[] peers = new String[NODES];
+		for (int n = 0; n < NODES; n++)
+		{
+			ports[n] = freePort();
+			admin[n] = freePort();
+			peers[n] = "localhost:" + freePort();
+			cluster.append(n > 0? ",": "").append(peers[n]);
+		}
+
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		for (int n = 0; n < NODES; n++)
+		{
+			ProcessBuilder pb = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), "JokeServer",
+					"-port=" + ports[n], "-adminport=" + admin[n], "-cluster=" + cluster, "-node=" + peers[n], "-peertimeout=300");
+			pb.redirectErrorStream(true);
+			pb.redirectOutput(folder.newFile("node" + n + ".log"));
+			nodes[n] = pb.start();
+		}
+		for (int n = 0; n < NODES; n++)
+		{
+			long limit = System.currentTimeMillis() + 20000;
+			while (!"READY".equals(admin(n, "HEALTH")))
+			{
+				assertTrue("node " + n + " did not start", System.currentTimeMillis() < limit && nodes[n].isAlive());
+				Thread.sleep(50);
+			}
+		}
+		Cluster.ring(cluster.toString());
+	}
+
+	@After
+	public void stop() throws Exception
+	{
+		Cluster.nodes = null; // The other tests run without a cluster.
+		for (Process p : nodes)
+		{
+			if (p != null)
+			{
+				p.destroyForcibly();
+				p.waitFor();
+			}
+		}
+	}
+
+	static int freePort() throws IOException
+	{
+		try (ServerSocket s = new ServerSocket(0))
+		{
+			return s.getLocalPort();
+		}
+	}
+
+	// A request of an older client, on a connection of its own: the mode, the new state and the item.
+	String[] ask(int node, String id, String state) throws IOException
+	{
+		try (Socket sock = new Socket("localhost", ports[node]))
+		{
+			sock.setSoTimeout(5000);
+			OutputStream out = sock.getOutputStream();
+			out.write((id + "\n" + state + "\n").getBytes("UTF-8"));
+			out.flush();
+			BufferedReader in = new BufferedReader(new InputStreamReader(sock.getInputStream(), "UTF-8"));
+			String[] reply = {in.readLine(), in.readLine(), in.readLine()};
+			assertTrue("no reply from node " + node, reply[2] != null);
+			return reply;
+		}
+	}
+
+	// The one-line reply to an admin command, null while the node does not listen yet.
+	String admin(int node, String command)
+	{
+		try (Socket sock = new Socket("localhost", admin[node]))
+		{
+			sock.setSoTimeout(5000);
+			sock.getOutputStream().write((command + "\n").getBytes("UTF-8"));
+			return new BufferedReader(new InputStreamReader(sock.getInputStream(), "UTF-8")).readLine();
+		}
+		catch (IOException x)
+		{
+			return null;
+		}
+	}
+
+	// Each request of a client goes to another node, and within a deck the same request sent to yet another node
+	// gets the same item and the same state back: the deck is the one of the owner, whoever serves it. The first
+	// request of a deck draws a new one, so it is only sent once. A deck holds no item twice.
+	@Test
+	public void sessionKeepsItsDeckAcrossNodes() throws Exception
+	{
+		String id = UUID.randomUUID().toString();
+		String state = "#";
+		Set<String> deck = new HashSet<>();
+		for (int r = 0; r < 3 * DECK; r++)
+		{
+			String[] reply = ask(r % NODES, id, state);
+			assertEquals("J", reply[0]);
+			if (r % DECK == 0)
+				deck.clear();
+			else
+			{
+				String[] again = ask((r + 1) % NODES, id, state);
+				assertEquals("request " + r, reply[2], again[2]);
+				assertEquals("request " + r, reply[1], again[1]);
+			}
+			assertTrue("request " + r + " gave " + reply[2] + " twice in a deck", deck.add(reply[2]));
+			state = reply[1];
+		}
+	}
+
+	// Once the backup holds the deck, the owner is stopped: the third node finds the owner down, and the
+	// backup serves the rest of the deck, the item the owner would have given first.
+	@Test
+	public void backupTakesOverWhenTheOwnerIsDown() throws Exception
+	{
+		String id = UUID.randomUUID().toString();
+		long msb = SessionTable.msb(id), lsb = SessionTable.lsb(id);
+		int owner = Cluster.candidate(msb, lsb, 0);
+		int backup = Cluster.candidate(msb, lsb, 1);
+		int third = NODES - owner - backup;
+		assertNotEquals(owner, backup);
+
+		// Two items of a deck, served by the third node from the owner's session, copied in the background to the backup.
+		Set<String> deck = new HashSet<>();
+		String state = "#";
+		for (int r = 0; r < 2; r++)
+		{
+			String[] reply = ask(third, id, state);
+			assertTrue(deck.add(reply[2]));
+			state = reply[1];
+		}
+		long limit = System.currentTimeMillis() + 5000;
+		while (received(backup) == 0)
+		{
+			assertTrue("the backup got no deck", System.currentTimeMillis() < limit);
+			Thread.sleep(20);
+		}
+		String next = ask(owner, id, state)[2]; // Asking again with the same state gives the same item.
+
+		nodes[owner].destroyForcibly();
+		nodes[owner].waitFor();
+		String[] reply = ask(third, id, state);
+		assertEquals(next, reply[2]);
+		assertTrue(deck.add(reply[2]));
+		state = reply[1];
+		for (int r = deck.size(); r < DECK; r++)
+		{
+			reply = ask(r % 2 == 0? third: backup, id, state);
+			assertTrue("item " + reply[2] + " twice in a deck", deck.add(reply[2]));
+			state = reply[1];
+		}
+		assertFalse("the third node never found the owner down", admin(third, "CLUSTER").contains(" 0 failovers"));
+	}
+
+	// The decks a node received as a backup.
+	long received(int node)
+	{
+		Matcher m = RECEIVED.matcher(String.valueOf(admin(node, "CLUSTER")));
+		return (m.find()? Long.parseLong(m.group(1)): 0);
+	}
+}
@@ -0,0 +1,149 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet; // The items of a deck seen so far.
+import java.util.Set;
+import java.util.SplittableRandom; // Seeded, so the counts of a run never change.
+
+import org.junit.Test;
+
+// The decks of Deck: the Feistel permutation and its cycle-walking give every entry of the catalog once,
+// for any catalog size, and each item of a deck is any entry with the same chance.
+//	> cd bench
+//	> mvn -B test -Dtest=DeckTest
+public class DeckTest
+{
+	// A deck for a catalog of stamp 0, out of a seeded generator instead of the one of the thread.
+	static long deck(SplittableRandom random)
+	{
+		return random.nextLong() >>> (64 - Deck.STAMP_SHIFT);
+	}
+
+	// The whole permutation of a deck is a bijection of the catalog, so no deck ever holds an entry twice,
+	// whether the catalog fills its domain or has to walk the cycles out of it.
+	@Test
+	public void permutationHoldsEveryEntryOnce()
+	{
+		SplittableRandom random = new SplittableRandom(1);
+		for (int n : new int[] {4, 5, 7, 10, 16, 17, 100, 1000, 4097, 65537})
+		{
+			for (int d = 0; d < 20; d++)
+			{
+				long deck = deck(random);
+				boolean[] seen = new boolean[n];
+				for (int i = 0; i < n; i++)
+				{
+					int x = Deck.get(deck, i, n);
+					assertTrue("n " + n + " item " + i + " gives " + x, x >= 0 && x < n);
+					assertTrue("n " + n + " entry " + x + " twice", !seen[x]);
+					seen[x] = true;
+				}
+			}
+		}
+	}
+
+	// The decks drawn by the server carry their stamp, and their items never repeat.
+	@Test
+	public void drawnDecksHaveNoDuplicates()
+	{
+		for (int stamp = 0; stamp < 300; stamp++)
+		{
+			long deck = Deck.draw(stamp);
+			assertTrue(deck != Deck.NONE && deck >= 0);
+			assertEquals(stamp & Deck.STAMP_MASK, Deck.stamp(deck));
+
+			Set<Integer> items = new HashSet<>();
+			for (int i = 0; i < State.MAX_DECK; i++)
+			{
+				assertTrue(items.add(Deck.get(deck, i, 1000)));
+			}
+		}
+	}
+
+	// Above 2^30 entries the network takes all 32 bits: an index with the top bit set is outside the catalog.
+	@Test
+	public void largeCatalogs()
+	{
+		SplittableRandom random = new SplittableRandom(2);
+		for (int n : new int[] {(1 << 30) + 7, Integer.MAX_VALUE})
+		{
+			for (int d = 0; d < 5; d++)
+			{
+				long deck = deck(random);
+				Set<Integer> items = new HashSet<>();
+				for (int i = 0; i < 20000; i++)
+				{
+					int x = Deck.get(deck, i, n);
+					assertTrue("n " + n + " item " + i + " gives " + x, x >= 0 && x < n);
+					assertTrue(items.add(x));
+				}
+			}
+		}
+	}
+
+	// Each place of a deck is each entry with the same chance, and so is each ordered pair of the first
+	// two places. The seed fixes the counts, each chi-square is checked against its critical value at p = 0.001.
+	@Test
+	public void itemsAreUniform()
+	{
+		for (int n : new int[] {5, 10, 13})
+		{
+			int decks = 20000 * n;
+			long[][] places = new long[Catalog.DECK][n];
+			long[] pairs = new long[n * n];
+			SplittableRandom random = new SplittableRandom(n);
+			for (int d = 0; d < decks; d++)
+			{
+				long deck = deck(random);
+				for (int i = 0; i < Catalog.DECK; i++)
+				{
+					places[i][Deck.get(deck, i, n)]++;
+				}
+				pairs[Deck.get(deck, 0, n) * n + Deck.get(deck, 1, n)]++;
+			}
+
+			for (int i = 0; i < Catalog.DECK; i++)
+			{
+				double chi = chiSquare(places[i], (double) decks / n, null);
+				assertTrue("n " + n + " place " + i + " chi-square " + chi, chi < critical(n - 1));
+			}
+
+			// The pairs of an entry with itself never happen, the others are all equally likely.
+			int cells = n * (n - 1);
+			double chi = chiSquare(pairs, (double) decks / cells, n);
+			assertTrue("n " + n + " pairs chi-square " + chi, chi < critical(cells - 1));
+		}
+	}
+
+	// The chi-square critical value at p = 0.001 for the degrees of freedom of the catalog sizes above.
+	static double critical(int df)
+	{
+		switch (df)
+		{
+			case 4: return 18.467;
+			case 9: return 27.877;
+			case 12: return 32.909;
+			case 19: return 43.820;
+			case 89: return 135.978;
+			case 155: return 215.149;
+			default: throw new IllegalArgumentException("No critical value for " + df + " degrees of freedom");
+		}
+	}
+
+	// The chi-square statistic of the counts, skipping the diagonal of an n by n table when n is given.
+	static double chiSquare(long[] counts, double expected, Integer n)
+	{
+		double chi = 0;
+		for (int c = 0; c < counts.length; c++)
+		{
+			if (n != null && c / n == c % n)
+			{
+				assertEquals(0, counts[c]);
+				continue;
+			}
+			double diff = counts[c] - expected;
+			chi += diff * diff / expected;
+		}
+		return chi;
+	}
+}
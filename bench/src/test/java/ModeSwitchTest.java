@@ -0,0 +1,145 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.OutputStream; // The log, which keeps nothing.
+import java.io.PrintStream;
+import java.util.HashMap; // The entries of the catalogs.
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong; // Mode changes made by the admin thread.
+
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+// The server mode switched over and over by an admin thread while clients are served: each request reads the
+// mode once, so its reply, its state and its item all belong to one mode, whatever the admin does meanwhile.
+//	> cd bench
+//	> mvn -B test -Dtest=ModeSwitchTest
+public class ModeSwitchTest
+{
+	static final int THREADS = 6;
+	static final int REQUESTS = 20000;
+
+	static Map<Category, Set<String>> entries = new HashMap<>(); // The jokes and the proverbs.
+	static volatile boolean switching; // True while the admin thread changes the mode.
+
+	// A server without ports, as the Worker threads and the event loops see it. The log runs, once for all 
+	// the tests, but prints nothing.
+	@BeforeClass
+	public static void server() throws Exception
+	{
+		Log.level = Log.ERROR;
+		if (Log.turn == null)
+		{
+			Log.out = new PrintStream(new OutputStream()
+			{
+				public void write(int b) {}
+			});
+			Log.init();
+		}
+		JokeServer.sessions = new SessionTable(1 << 12, 3600, 8);
+		JokeServer.getPoolReady();
+		for (Category mode : new Category[] {Category.JOKE, Category.PROVERB})
+		{
+			Catalog catalog = mode.catalog();
+			Set<String> texts = new HashSet<>();
+			for (int i = 0; i < catalog.size(); i++)
+			{
+				texts.add(catalog.get(i));
+			}
+			entries.put(mode, texts);
+		}
+	}
+
+	@After
+	public void jokeMode()
+	{
+		ModeRegistry.set(Category.JOKE);
+	}
+
+	@Test
+	public void requestsReadTheModeOnce() throws Exception
+	{
+		final AtomicLong changes = new AtomicLong();
+		long epoch = ModeRegistry.get().epoch;
+		switching = true;
+		Thread admin = new Thread(() -> {
+			for (int i = 0; switching; i++)
+			{
+				if (ModeRegistry.set(i % 2 == 0? Category.PROVERB: Category.JOKE))
+					changes.incrementAndGet();
+			}
+		});
+		admin.start();
+
+		try
+		{
+			// Each kind of client: 8-bit states, version 2 states and batches.
+			SessionTableTest.run(THREADS, t -> {
+				String id = new UUID(t, 1).toString();
+				Set<Category> seen = new HashSet<>();
+				Map<Category, Set<Integer>> cycles = new HashMap<>(); // The items of the current deck of each mode.
+				String state = (t % 3 == 1? "#": "0");
+				Reply reply = new Reply();
+				for (int r = 0; r < REQUESTS; r++)
+				{
+					if (t % 3 == 2)
+					{
+						String[] lines = Worker.answerBatch(id, state, 3);
+						Category mode = Category.of(lines[0]);
+						seen.add(mode);
+						for (int i = 4; i < lines.length; i += 2)
+						{
+							assertTrue(lines[0] + " batch holds " + lines[i], entries.get(mode).contains(lines[i]));
+						}
+						state = lines[1];
+						continue;
+					}
+
+					Worker.answer(SessionTable.msb(id), SessionTable.lsb(id), state, reply);
+					Category mode = reply.mode;
+					Category other = (mode == Category.JOKE? Category.PROVERB: Category.JOKE);
+					seen.add(mode);
+					assertSame(mode.catalog(), reply.catalog);
+					assertTrue(mode.code + " reply holds " + reply.text(), entries.get(mode).contains(reply.text()));
+
+					// Only the part of the state of the mode moved, one more item of its deck.
+					String next = reply.stateText();
+					if (reply.legacy)
+					{
+						int n = Integer.parseInt(state);
+						assertEquals(n & other.legacyMask(), reply.state & other.legacyMask());
+						assertEquals(reply.sent, Integer.bitCount(reply.state & mode.legacyMask()));
+					}
+					else
+					{
+						byte[] before = new byte[State.MAX];
+						int length = State.parse(state, before);
+						assertEquals(State.mask(before, 0, length, other), State.mask(reply.wide, 0, reply.wideLength, other));
+						assertEquals(reply.sent, Long.bitCount(State.mask(reply.wide, 0, reply.wideLength, mode)));
+					}
+
+					// The deck of each mode goes on where it was, and never repeats an item within a cycle.
+					if (reply.sent == 1)
+						cycles.put(mode, new HashSet<Integer>());
+					assertTrue(mode.code + " item " + reply.item + " twice in a deck", cycles.get(mode).add(reply.item));
+					state = next;
+				}
+				assertEquals("thread " + t + " saw " + seen, 2, seen.size());
+				return null;
+			});
+		}
+		finally
+		{
+			switching = false;
+			admin.join();
+		}
+
+		assertEquals(changes.get(), ModeRegistry.get().epoch - epoch);
+		assertTrue(changes.get() > 100);
+	}
+}
@@ -0,0 +1,121 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet; // The items of the current deck of a client.
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong; // Catalogs published by the admin thread.
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+// The joke catalog reloaded over and over by an admin thread while clients are served: each request is read
+// against the one catalog snapshot it started with, and its deck is always the deck of that snapshot.
+//	> cd bench
+//	> mvn -B test -Dtest=ReloadTest
+public class ReloadTest
+{
+	static final int THREADS = 6;
+	static final int REQUESTS = 20000;
+
+	static volatile boolean reloading; // True while the admin thread publishes catalogs.
+
+	@BeforeClass
+	public static void server() throws Exception
+	{
+		ModeSwitchTest.server();
+		ModeRegistry.set(Category.JOKE);
+	}
+
+	// Give the other tests the built-in catalogs back.
+	@AfterClass
+	public static void builtIn()
+	{
+		JokeServer.getPoolReady();
+	}
+
+	// A catalog of the given size, its entries tell the reload they come from.
+	static Catalog catalog(long reload, int size)
+	{
+		String[] entries = new String[size];
+		for (int i = 0; i < size; i++)
+		{
+			entries[i] = "Reload " + reload + ", joke " + i;
+		}
+		return new ArrayCatalog(entries);
+	}
+
+	@Test
+	public void requestsReadOneSnapshot() throws Exception
+	{
+		final AtomicLong reloads = new AtomicLong();
+		reloading = true;
+		Thread admin = new Thread(() -> {
+			while (reloading)
+			{
+				// Catalogs of the same size in pairs, which used to keep the decks of the one before.
+				long n = reloads.incrementAndGet();
+				Category.JOKE.publish(catalog(n, 10 + (int) (n / 2 % 3)));
+			}
+		});
+		admin.start();
+
+		try
+		{
+			SessionTableTest.run(THREADS, t -> {
+				String id = new UUID(t, 2).toString();
+				String state = (t % 2 == 0? "#": "0");
+				Reply reply = new Reply();
+				Catalog last = null; // The snapshot of the last request.
+				Set<Integer> cycle = new HashSet<>(); // The items of the current deck.
+				for (int r = 0; r < REQUESTS; r++)
+				{
+					Worker.answer(SessionTable.msb(id), SessionTable.lsb(id), state, reply);
+					assertSame(Category.JOKE, reply.mode);
+					assertEquals("deck of another catalog", reply.catalog.stamp, Deck.stamp(reply.deck));
+					assertTrue(reply.item >= 0 && reply.item < reply.catalog.size());
+					assertTrue(reply.text().startsWith("Reload ") || r == 0);
+
+					// A deck goes on only while its catalog stays, and then never repeats an item. The one exception 
+					// is a catalog 256 reloads later, which has the same stamp again (see Catalog.stamp).
+					if (reply.sent == 1 || last.stamp == reply.catalog.stamp && last != reply.catalog)
+						cycle.clear();
+					else
+						assertSame("a deck went on over a new catalog", last, reply.catalog);
+					assertTrue("item " + reply.item + " twice in a deck", cycle.add(reply.item));
+					last = reply.catalog;
+					state = reply.stateText();
+				}
+				return null;
+			});
+		}
+		finally
+		{
+			reloading = false;
+			admin.join();
+		}
+		assertTrue(reloads.get() > 100);
+	}
+
+	// A catalog of the same size, with other entries, starts a new cycle too.
+	@Test
+	public void sameSizeReloadStartsANewCycle() throws Exception
+	{
+		String id = new UUID(99, 2).toString();
+		Reply reply = new Reply();
+		Category.JOKE.publish(catalog(-1, 10));
+		Worker.answer(SessionTable.msb(id), SessionTable.lsb(id), "#", reply);
+		Worker.answer(SessionTable.msb(id), SessionTable.lsb(id), reply.stateText(), reply);
+		assertEquals(2, reply.sent);
+		Catalog before = reply.catalog;
+
+		Category.JOKE.publish(catalog(-2, 10));
+		Worker.answer(SessionTable.msb(id), SessionTable.lsb(id), reply.stateText(), reply);
+		assertNotSame(before, reply.catalog);
+		assertEquals(1, reply.sent);
+		assertEquals(reply.catalog.stamp, Deck.stamp(reply.deck));
+	}
+}
@@ -0,0 +1,193 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer; // The records written to a log by hand.
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicBoolean; // Stops the snapshots once the clients are done.
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+// The sessions kept with "-persist=": the decks logged before a crash come back when the directory is opened 
+// again, from the snapshot and the logs written after it, and a record torn by the crash ends the replay.
+// A crash is a SessionLog which is dropped, neither closed nor snapshot, once its records are written.
+//	> cd bench
+//	> mvn -B test -Dtest=SessionLogTest
+public class SessionLogTest
+{
+	static final int CLIENTS = 2000;
+	static final int J = Category.JOKE.field;
+	static final int P = Category.PROVERB.field;
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	@BeforeClass
+	public static void server() throws Exception
+	{
+		ModeSwitchTest.server();
+	}
+	
+	// The sessions of the directory in a new table, logged from now on, as SessionLog.open does without its 
+	// thread: the tests write the log themselves.
+	static SessionLog open(Path dir) throws IOException
+	{
+		SessionTable table = new SessionTable(1 << 14, 3600, 8);
+		SessionLog log = new SessionLog(table, dir, 1000, 3600);
+		log.recover();
+		table.log = log;
+		return log;
+	}
+	
+	// Store a joke deck and a proverb deck for every client, then store some of them again and remove others.
+	static void play(SessionTable table, int round)
+	{
+		for (int c = 0; c < CLIENTS; c++)
+		{
+			table.setDeck(1, c, J, SessionTableTest.deck(0, round, c));
+			table.setDeck(1, c, P, SessionTableTest.deck(1, round, c));
+			if (c % 3 == 0)
+				table.setDeck(1, c, J, SessionTableTest.deck(2, round, c));
+			if (c % 7 == 0)
+				table.remove(1, c);
+		}
+	}
+	
+	// The decks play left, in a table opened again.
+	static void check(SessionTable table, int round)
+	{
+		for (int c = 0; c < CLIENTS; c++)
+		{
+			boolean removed = (c % 7 == 0);
+			long joke = (removed? Deck.NONE: SessionTableTest.deck(c % 3 == 0? 2: 0, round, c));
+			long proverb = (removed? Deck.NONE: SessionTableTest.deck(1, round, c));
+			assertEquals("client " + c, joke, table.deck(1, c, J));
+			assertEquals("client " + c, proverb, table.deck(1, c, P));
+		}
+		assertEquals(CLIENTS - (CLIENTS + 6) / 7, table.size());
+	}
+	
+	@Test
+	public void logSurvivesACrash() throws Exception
+	{
+		Path dir = folder.getRoot().toPath();
+		SessionLog log = open(dir);
+		play(log.table, 0);
+		log.write(true);
+		
+		SessionLog again = open(dir);
+		check(again.table, 0);
+		assertEquals(1, again.generation); // The replayed log stays until the next snapshot, a new one is written.
+		assertTrue(Files.exists(dir.resolve("sessions.0.wal")));
+	}
+	
+	// A crash in the middle of a write leaves a record whose check fails, or less than a record, at the end 
+	// of the log. Neither is replayed, the records before them are.
+	@Test
+	public void tornTailIsIgnored() throws Exception
+	{
+		Path dir = folder.getRoot().toPath();
+		SessionLog log = open(dir);
+		play(log.table, 0);
+		log.write(true);
+		
+		// A record which would give client 1 another deck, with one byte of its deck lost.
+		long deck = SessionTableTest.deck(9, 9, 1);
+		int place = 'J' << 16 | J;
+		ByteBuffer torn = ByteBuffer.allocate(SessionLog.RECORD + 10);
+		torn.putLong(1).putLong(1).putLong(deck ^ 0xFF).putInt(place).putInt(SessionLog.check(1, 1, deck, place));
+		torn.putLong(1).putShort((short) 1).flip();
+		try (FileChannel ch = FileChannel.open(dir.resolve("sessions.0.wal"), StandardOpenOption.APPEND))
+		{
+			ch.write(torn);
+		}
+		
+		SessionLog again = open(dir);
+		check(again.table, 0);
+		
+		// The next log starts clean, and is replayed after the torn one.
+		again.table.setDeck(1, 1, J, deck);
+		again.write(true);
+		assertEquals(deck, open(dir).table.deck(1, 1, J));
+	}
+	
+	// A snapshot starts a new generation of the log, and deletes the logs it holds: the decks stored after it 
+	// are replayed on top of it, and so are those stored while it is written.
+	@Test
+	public void snapshotHandsOverToTheNextLog() throws Exception
+	{
+		Path dir = folder.getRoot().toPath();
+		SessionLog log = open(dir);
+		play(log.table, 0);
+		log.snapshot();
+		assertEquals(1, log.generation);
+		assertFalse(Files.exists(dir.resolve("sessions.0.wal")));
+		assertTrue(Files.exists(dir.resolve("sessions.snap")));
+		
+		// Thread 0 takes snapshots while the others store the decks of their clients again.
+		final SessionTable table = log.table;
+		final AtomicBoolean playing = new AtomicBoolean(true);
+		final int threads = 4;
+		SessionTableTest.run(threads, t -> {
+			if (t == 0)
+			{
+				while (playing.get())
+				{
+					log.snapshot();
+				}
+				return null;
+			}
+			for (int round = 1; round <= 20; round++)
+			{
+				for (int c = t - 1; c < CLIENTS; c += threads - 1)
+				{
+					table.setDeck(1, c, J, SessionTableTest.deck(t, round, c));
+				}
+			}
+			playing.set(false);
+			return null;
+		});
+		log.write(true);
+		assertTrue(log.generation > 1);
+		
+		SessionTable again = open(dir).table;
+		for (int c = 0; c < CLIENTS; c++)
+		{
+			int t = c % (threads - 1) + 1;
+			assertEquals("client " + c, SessionTableTest.deck(t, 20, c), again.deck(1, c, J));
+			assertEquals("client " + c, (c % 7 == 0? Deck.NONE: SessionTableTest.deck(1, 0, c)), again.deck(1, c, P));
+		}
+	}
+	
+	// A deck at a place which no category has in this run, as for a category the admin registered before 
+	// the restart and not since, is dropped from the log and from the snapshot.
+	@Test
+	public void decksOfUnknownCategoriesAreDropped() throws Exception
+	{
+		Path dir = folder.getRoot().toPath();
+		int unknown = SessionTable.DECKS + 8 * 7;
+		SessionLog log = open(dir);
+		log.table.setDeck(1, 1, J, 5);
+		log.table.setDeck(1, 1, unknown, 6);
+		log.write(true);
+		
+		SessionLog again = open(dir);
+		assertEquals(5, again.table.deck(1, 1, J));
+		assertEquals(Deck.NONE, again.table.deck(1, 1, unknown));
+		assertEquals(1, again.dropped);
+		
+		again.table.setDeck(1, 2, unknown, 7);
+		again.snapshot();
+		SessionLog last = open(dir);
+		assertEquals(5, last.table.deck(1, 1, J));
+		assertEquals(Deck.NONE, last.table.deck(1, 2, unknown));
+		assertEquals(1, last.dropped);
+	}
+}
@@ -0,0 +1,139 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList; // The tasks of the threads.
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch; // Starts the threads together.
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+// The session store under many threads: no deck is lost or given to another client, and the open-addressing
+// segments stay consistent while sessions are created and evicted at the same time.
+//	> cd bench
+//	> mvn -B test -Dtest=SessionTableTest
+public class SessionTableTest
+{
+	static final int THREADS = 8;
+	static final int ROUNDS = 50;
+
+	// Each thread keeps its own clients and checks that it reads back the last deck it stored for each of them,
+	// while every thread also stores decks for a few shared clients, so the threads fight for the same segments.
+	@Test
+	public void concurrentClientsKeepTheirDecks() throws Exception
+	{
+		final int own = 2000;
+		final int shared = 64;
+		final SessionTable table = new SessionTable(1 << 16, 3600, 2);
+
+		run(THREADS, t -> {
+			long[] last = new long[own];
+			for (int round = 0; round < ROUNDS; round++)
+			{
+				for (int c = 0; c < own; c++)
+				{
+					long msb = t + 1, lsb = c;
+					long deck = table.deck(msb, lsb, SessionTable.DECKS);
+					assertEquals("thread " + t + " client " + c, (round == 0? Deck.NONE: last[c]), deck);
+					last[c] = deck(t, round, c);
+					table.setDeck(msb, lsb, SessionTable.DECKS, last[c]);
+
+					// A shared client gets decks of every thread, any of them may be read, but only one stored for it.
+					long other = table.deck(0, c % shared, SessionTable.DECKS + 8);
+					assertTrue(other == Deck.NONE || (other & 0xFFFFF) % shared == c % shared);
+					table.setDeck(0, c % shared, SessionTable.DECKS + 8, deck(t, round, c));
+				}
+			}
+			return null;
+		});
+
+		assertEquals(THREADS * own + shared, table.size());
+		assertEquals(0, table.evictions.get());
+		checkSegments(table);
+	}
+
+	// Many more clients than the table holds: every store evicts, and the evictions move the following
+	// slots back, which must leave every session where its probe sequence finds it.
+	@Test
+	public void evictionsUnderContention() throws Exception
+	{
+		final int clients = 20000;
+		final SessionTable table = new SessionTable(512, 3600, 2);
+
+		run(THREADS, t -> {
+			for (int c = 0; c < clients; c++)
+			{
+				table.setDeck(t + 1, c, SessionTable.DECKS, deck(t, 0, c));
+				long deck = table.deck(t + 1, c % 97, SessionTable.DECKS);
+				assertTrue(deck == Deck.NONE || deck == deck(t, 0, c % 97));
+			}
+			return null;
+		});
+
+		assertTrue(table.size() <= table.capacity);
+		assertTrue(table.evictions.get() >= (long) THREADS * clients - table.capacity);
+		checkSegments(table);
+	}
+
+	// Every session of every segment is found from its home slot, and the segments count them right.
+	static void checkSegments(SessionTable table)
+	{
+		for (SessionSegment segment : table.segments)
+		{
+			int count = 0;
+			for (int i = 0; i <= segment.mask; i++)
+			{
+				if (segment.access(i) == 0)
+					continue;
+				long msb = segment.slots.getLong(i * table.slot + SessionTable.MSB);
+				long lsb = segment.slots.getLong(i * table.slot + SessionTable.LSB);
+				assertEquals(i, segment.find(msb, lsb, SessionTable.hash(msb, lsb)));
+				count++;
+			}
+			assertEquals(segment.size, count);
+			assertTrue(segment.size <= segment.capacity);
+		}
+	}
+
+	// The deck a thread stores in a round for a client, which tells all three back.
+	static long deck(int t, int round, int c)
+	{
+		return ((long) t << 40) | ((long) round << 20) | c;
+	}
+
+	interface Task
+	{
+		Void run(int thread) throws Exception;
+	}
+
+	// Run the task on the threads at the same time, and fail with the first failure of any of them.
+	static void run(int threads, final Task task) throws Exception
+	{
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		final CountDownLatch start = new CountDownLatch(1);
+		try
+		{
+			List<Future<Void>> done = new ArrayList<>();
+			for (int t = 0; t < threads; t++)
+			{
+				final int thread = t;
+				done.add(pool.submit((Callable<Void>) () -> {
+					start.await();
+					return task.run(thread);
+				}));
+			}
+			start.countDown();
+			for (Future<Void> f : done)
+			{
+				f.get();
+			}
+		}
+		finally
+		{
+			pool.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,129 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer; // The MAC of a forged state.
+import java.util.UUID;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+// The tokens of the stateless mode, as a client could change them: a state the server signed goes on with its
+// deck, and a state with any byte changed, its MAC or the code of its MAC included, starts over with a new deck.
+//	> cd bench
+//	> mvn -B test -Dtest=TokenTest
+public class TokenTest
+{
+	static final int SENT = 2; // Items of the deck sent before the state is changed.
+
+	@BeforeClass
+	public static void server() throws Exception
+	{
+		ModeSwitchTest.server();
+		ModeRegistry.set(Category.JOKE);
+		Token.key = "TokenTest".getBytes("UTF-8");
+	}
+
+	// The other tests keep sessions.
+	@AfterClass
+	public static void sessions()
+	{
+		Token.key = null;
+	}
+
+	String id = UUID.randomUUID().toString();
+	Reply reply = new Reply();
+
+	// The state after the first SENT items of a new deck, which is left in reply.
+	String played()
+	{
+		String state = "#";
+		for (int r = 0; r < SENT; r++)
+		{
+			state = ask(state);
+		}
+		assertEquals(SENT, reply.sent);
+		return state;
+	}
+
+	String ask(String state)
+	{
+		Worker.answer(SessionTable.msb(id), SessionTable.lsb(id), state, reply);
+		assertTrue(reply.token);
+		return reply.stateText();
+	}
+
+	@Test
+	public void signedStateGoesOn()
+	{
+		String state = played();
+		long deck = reply.deck;
+		ask(state);
+		assertEquals(SENT + 1, reply.sent);
+		assertEquals(deck, reply.deck);
+	}
+
+	// Each byte of the state in turn, its lowest bit flipped so that the entries still read: the mask, the deck,
+	// the MAC, and the codes before them. The code of the MAC turns into another one, and the state has none.
+	@Test
+	public void changedStateStartsOver()
+	{
+		String state = played();
+		long deck = reply.deck;
+		long msb = SessionTable.msb(id), lsb = SessionTable.lsb(id);
+		byte[] s = new byte[State.MAX];
+		int length = State.parse(state, s);
+		assertEquals(Token.MAC, s[macAt(s, length)]);
+		for (int i = 0; i < length; i++)
+		{
+			s[i] ^= 1;
+			assertFalse("byte " + i + " changed", Token.verify(msb, lsb, s, 0, length));
+			ask(State.text(s, length));
+			s[i] ^= 1;
+			assertEquals("byte " + i + " changed", 1, reply.sent);
+			assertNotEquals("byte " + i + " changed", deck, reply.deck);
+		}
+	}
+
+	// A client which knows the format of the state but not the key: it keeps its deck, marks one item sent
+	// only, and signs it all with a key of its own.
+	@Test
+	public void forgedStateStartsOver() throws Exception
+	{
+		played();
+		long deck = reply.deck;
+		byte[] s = new byte[State.MAX];
+		int o = 0;
+		s[o++] = (byte) Category.JOKE.code.charAt(0);
+		o = State.putVarint(s, o, State.first(1));
+		s[o++] = (byte) (Category.JOKE.code.charAt(0) | Token.DECK);
+		o = State.putVarint(s, o, deck);
+		Mac mac = Mac.getInstance("HmacSHA256");
+		mac.init(new SecretKeySpec("Forged".getBytes("UTF-8"), "HmacSHA256"));
+		mac.update(ByteBuffer.allocate(16).putLong(SessionTable.msb(id)).putLong(SessionTable.lsb(id)).array());
+		mac.update(s, 0, o);
+		long tag = ByteBuffer.wrap(mac.doFinal()).getLong() & Long.MAX_VALUE;
+		s[o++] = (byte) Token.MAC;
+		o = State.putVarint(s, o, tag);
+
+		ask(State.text(s, o));
+		assertEquals(1, reply.sent);
+		assertNotEquals(deck, reply.deck);
+	}
+
+	// The place of the code of the MAC, the last entry of a signed state.
+	static int macAt(byte[] s, int length)
+	{
+		int at = 0;
+		for (int i = 0; i < length; i = State.skip(s, i + 1, length))
+		{
+			at = i;
+		}
+		return at;
+	}
+}